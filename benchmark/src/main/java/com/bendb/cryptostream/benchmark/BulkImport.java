@@ -0,0 +1,79 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream.benchmark;
+
+import com.bendb.cryptostream.CryptoOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Photos and videos being imported from the camera: each operation
+ * encrypts a new multi-megabyte file, written in camera-sized chunks, and
+ * the file is deleted afterwards so disk usage stays flat.
+ */
+final class BulkImport extends Workload {
+
+    static final String NAME = "bulk-import";
+    static final int DEFAULT_THREADS = 2;
+
+    private static final int MIN_SIZE = 1024 * 1024;
+    private static final int MAX_SIZE = 8 * 1024 * 1024;
+    private static final int WRITE_SIZE = 32 * 1024;
+
+    private final AtomicInteger workerCount = new AtomicInteger();
+
+    BulkImport(int threads) {
+        super(NAME, threads);
+    }
+
+    @Override
+    protected void prepare(Random random) {
+        // Every operation creates its own file.
+    }
+
+    @Override
+    Worker newWorker(Random random) {
+        return new Worker() {
+            private final byte[] chunk = new byte[WRITE_SIZE];
+            private final File file = new File(dir, "import-" + workerCount.getAndIncrement());
+
+            {
+                random.nextBytes(chunk);
+            }
+
+            @Override
+            public long run() throws IOException {
+                int size = MIN_SIZE + random.nextInt(MAX_SIZE - MIN_SIZE);
+                try (CryptoOutputStream out = openOutput(file)) {
+                    for (int written = 0; written < size; written += chunk.length) {
+                        out.write(chunk, 0, Math.min(chunk.length, size - written));
+                    }
+                }
+                if (!file.delete()) {
+                    throw new IOException("Could not delete " + file);
+                }
+                return size;
+            }
+
+            @Override
+            public long thinkMillis() {
+                return 50 + random.nextInt(100);
+            }
+        };
+    }
+}
@@ -0,0 +1,99 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream.benchmark;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Records stop-the-world GC pauses while it is running, using the JVM's
+ * GC notifications.  Cycles reported as concurrent are not pauses and are
+ * ignored.
+ */
+final class GcMonitor implements NotificationListener, AutoCloseable {
+
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+
+    // Guarded by this.
+    private final LatencyHistogram pauses = new LatencyHistogram();
+    private long totalPauseNanos = 0;
+
+    GcMonitor() {
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (bean instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) bean;
+                emitter.addNotificationListener(this, null, null);
+                emitters.add(emitter);
+            }
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+
+        GarbageCollectionNotificationInfo info =
+                GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        if (info.getGcAction().contains("concurrent") || info.getGcName().contains("Concurrent")) {
+            return;
+        }
+
+        long nanos = info.getGcInfo().getDuration() * 1_000_000L;
+        synchronized (this) {
+            pauses.record(nanos);
+            totalPauseNanos += nanos;
+        }
+    }
+
+    synchronized long pauseCount() {
+        return pauses.count();
+    }
+
+    synchronized long totalPauseNanos() {
+        return totalPauseNanos;
+    }
+
+    synchronized long maxPauseNanos() {
+        return pauses.max();
+    }
+
+    synchronized long pausePercentile(double percentile) {
+        return pauses.percentile(percentile);
+    }
+
+    @Override
+    public void close() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (ListenerNotFoundException ignored) {
+                // Already gone; nothing to undo.
+            }
+        }
+        emitters.clear();
+    }
+}
@@ -0,0 +1,401 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays workload profiles against the crypto streams on the host JVM,
+ * and reports latency percentiles, throughput, allocation rate and GC
+ * pauses.
+ *
+ * <p>All workloads given run at once, each on its own threads, so their
+ * interference shows up in each other's tail latency.  After a warmup
+ * period, a line per workload is printed every reporting interval, which
+ * makes drift visible in long soak runs, followed by a summary.
+ *
+ * <pre>
+ *   --workloads a[:threads],b...   thumbnail-scroll, seek-scrub, bulk-import
+ *                                  (default: all three)
+ *   --duration SECONDS             measured run time (default 120)
+ *   --warmup SECONDS               unmeasured run time first (default 15)
+ *   --interval SECONDS             interim report period (default 10)
+ *   --dir PATH                     where to put the test files (default: a temp dir)
+ *   --secure-memory                open streams with secureMemory
+ *   --max-p99-ms MILLIS            exit with status 1 if any workload's p99 exceeds this
+ * </pre>
+ *
+ * The process also exits with status 1 if any operation fails.
+ */
+public final class LoadGenerator {
+
+    private static final class Options {
+        final List<String> workloads = new ArrayList<>();
+        long durationSeconds = 120;
+        long warmupSeconds = 15;
+        long intervalSeconds = 10;
+        File dir = null;
+        boolean secureMemory = false;
+        double maxP99Millis = Double.NaN;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--workloads":
+                        for (String spec : value(args, ++i, arg).split(",")) {
+                            options.workloads.add(spec.trim());
+                        }
+                        break;
+                    case "--duration":
+                        options.durationSeconds = Long.parseLong(value(args, ++i, arg));
+                        break;
+                    case "--warmup":
+                        options.warmupSeconds = Long.parseLong(value(args, ++i, arg));
+                        break;
+                    case "--interval":
+                        options.intervalSeconds = Long.parseLong(value(args, ++i, arg));
+                        break;
+                    case "--dir":
+                        options.dir = new File(value(args, ++i, arg));
+                        break;
+                    case "--secure-memory":
+                        options.secureMemory = true;
+                        break;
+                    case "--max-p99-ms":
+                        options.maxP99Millis = Double.parseDouble(value(args, ++i, arg));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+
+            if (options.workloads.isEmpty()) {
+                options.workloads.add(ThumbnailScroll.NAME);
+                options.workloads.add(SeekScrub.NAME);
+                options.workloads.add(BulkImport.NAME);
+            }
+
+            if (options.durationSeconds <= 0 || options.warmupSeconds < 0 || options.intervalSeconds <= 0) {
+                throw new IllegalArgumentException("durations must be positive");
+            }
+            return options;
+        }
+
+        private static String value(String[] args, int i, String option) {
+            if (i >= args.length) {
+                throw new IllegalArgumentException(option + " needs a value");
+            }
+            return args[i];
+        }
+    }
+
+    /**
+     * One worker thread's loop and its measurements.  The histograms are
+     * read by the reporting thread, so recording is synchronized; the lock
+     * is uncontended except at reporting time.
+     */
+    private static final class Runner extends Thread {
+        private final Workload workload;
+        private final long seed;
+        private final LatencyHistogram total = new LatencyHistogram();
+        private LatencyHistogram interval = new LatencyHistogram();
+        private long bytes = 0;
+        private long errors = 0;
+        private Exception firstError = null;
+
+        private volatile long allocatedAtStart = -1;
+        private volatile long allocatedAtEnd = -1;
+
+        Runner(Workload workload, int index, long seed) {
+            super(workload.name + "-" + index);
+            this.workload = workload;
+            this.seed = seed;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Workload.Worker worker = workload.newWorker(new Random(seed));
+            while (!stopped) {
+                if (measuring && allocatedAtStart < 0) {
+                    allocatedAtStart = allocatedBytes();
+                }
+
+                long start = System.nanoTime();
+                try {
+                    long n = worker.run();
+                    long elapsed = System.nanoTime() - start;
+                    if (measuring) {
+                        record(elapsed, n);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Counted even during warm-up: a workload that fails at
+                    // all must fail the run.
+                    recordError(e);
+                }
+
+                long think = worker.thinkMillis();
+                if (think > 0) {
+                    try {
+                        Thread.sleep(think);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+            allocatedAtEnd = allocatedBytes();
+        }
+
+        private synchronized void record(long nanos, long n) {
+            total.record(nanos);
+            interval.record(nanos);
+            bytes += n;
+        }
+
+        private synchronized void recordError(Exception e) {
+            errors++;
+            if (firstError == null) {
+                firstError = e;
+            }
+        }
+
+        synchronized LatencyHistogram takeInterval() {
+            LatencyHistogram result = interval;
+            interval = new LatencyHistogram();
+            return result;
+        }
+
+        long allocated() {
+            return allocatedAtStart < 0 || allocatedAtEnd < 0 ? 0 : allocatedAtEnd - allocatedAtStart;
+        }
+
+        private long allocatedBytes() {
+            return THREADS.getThreadAllocatedBytes(getId());
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static volatile boolean measuring = false;
+    private static volatile boolean stopped = false;
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        boolean deleteDir = options.dir == null;
+        File dir = deleteDir
+                ? Files.createTempDirectory("cryptostream-load").toFile()
+                : options.dir;
+
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+
+        List<Workload> workloads = new ArrayList<>();
+        for (String spec : options.workloads) {
+            workloads.add(Workload.create(spec));
+        }
+
+        int exitCode;
+        try {
+            for (Workload workload : workloads) {
+                long start = System.nanoTime();
+                workload.setUp(dir, key, options.secureMemory);
+                System.out.printf(Locale.ROOT, "prepared %s in %.1fs%n",
+                        workload.name, (System.nanoTime() - start) / 1e9);
+            }
+
+            exitCode = run(options, workloads);
+        } finally {
+            if (deleteDir) {
+                deleteRecursively(dir);
+            }
+        }
+
+        System.exit(exitCode);
+    }
+
+    private static int run(Options options, List<Workload> workloads) throws InterruptedException {
+        List<List<Runner>> runners = new ArrayList<>();
+        long seed = 0;
+        for (Workload workload : workloads) {
+            List<Runner> group = new ArrayList<>();
+            for (int i = 0; i < workload.threads; i++) {
+                Runner runner = new Runner(workload, i, seed++);
+                group.add(runner);
+                runner.start();
+            }
+            runners.add(group);
+        }
+
+        System.out.printf(Locale.ROOT, "warming up for %ds%n", options.warmupSeconds);
+        TimeUnit.SECONDS.sleep(options.warmupSeconds);
+
+        GcMonitor gc = new GcMonitor();
+        measuring = true;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+
+        System.out.printf(Locale.ROOT, "%-8s %-18s %10s %10s %10s %10s%n",
+                "time", "workload", "ops/s", "p50 ms", "p99 ms", "max ms");
+        long intervalNanos = TimeUnit.SECONDS.toNanos(options.intervalSeconds);
+        long next = start;
+        while (next < end) {
+            long previous = next;
+            next = Math.min(end, next + intervalNanos);
+            TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+
+            for (int w = 0; w < workloads.size(); w++) {
+                LatencyHistogram interval = new LatencyHistogram();
+                for (Runner runner : runners.get(w)) {
+                    interval.add(runner.takeInterval());
+                }
+                System.out.printf(Locale.ROOT, "%-8s %-18s %10.0f %10.2f %10.2f %10.2f%n",
+                        String.format(Locale.ROOT, "%ds", (next - start) / 1_000_000_000L),
+                        workloads.get(w).name,
+                        interval.count() / ((next - previous) / 1e9),
+                        millis(interval.percentile(50)),
+                        millis(interval.percentile(99)),
+                        millis(interval.max()));
+            }
+        }
+
+        stopped = true;
+        measuring = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (List<Runner> group : runners) {
+            for (Runner runner : group) {
+                runner.join(TimeUnit.SECONDS.toMillis(30));
+            }
+        }
+        gc.close();
+
+        return report(options, workloads, runners, gc, seconds);
+    }
+
+    private static int report(
+            Options options,
+            List<Workload> workloads,
+            List<List<Runner>> runners,
+            GcMonitor gc,
+            double seconds) {
+        int exitCode = 0;
+
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-18s %7s %9s %9s %8s %8s %8s %8s %8s %8s %10s %10s %7s%n",
+                "workload", "threads", "ops", "ops/s", "MB/s",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms",
+                "alloc MB/s", "alloc KB/op", "errors");
+
+        for (int w = 0; w < workloads.size(); w++) {
+            Workload workload = workloads.get(w);
+            LatencyHistogram latency = new LatencyHistogram();
+            long bytes = 0;
+            long errors = 0;
+            long allocated = 0;
+            Exception firstError = null;
+            for (Runner runner : runners.get(w)) {
+                synchronized (runner) {
+                    latency.add(runner.total);
+                    bytes += runner.bytes;
+                    errors += runner.errors;
+                    if (firstError == null) {
+                        firstError = runner.firstError;
+                    }
+                }
+                allocated += runner.allocated();
+            }
+
+            double p99 = millis(latency.percentile(99));
+            System.out.printf(Locale.ROOT,
+                    "%-18s %7d %9d %9.0f %8.1f %8.2f %8.2f %8.2f %8.2f %8.2f %10.1f %10.1f %7d%n",
+                    workload.name,
+                    workload.threads,
+                    latency.count(),
+                    latency.count() / seconds,
+                    bytes / seconds / (1024 * 1024),
+                    millis(latency.percentile(50)),
+                    millis(latency.percentile(90)),
+                    p99,
+                    millis(latency.percentile(99.9)),
+                    millis(latency.max()),
+                    allocated / seconds / (1024 * 1024),
+                    latency.count() == 0 ? 0.0 : allocated / 1024.0 / latency.count(),
+                    errors);
+
+            if (errors > 0) {
+                System.out.printf(Locale.ROOT, "  first error in %s: %s%n", workload.name, firstError);
+                exitCode = 1;
+            }
+
+            if (!Double.isNaN(options.maxP99Millis) && p99 > options.maxP99Millis) {
+                System.out.printf(Locale.ROOT, "  %s p99 of %.2f ms exceeds the limit of %.2f ms%n",
+                        workload.name, p99, options.maxP99Millis);
+                exitCode = 1;
+            }
+        }
+
+        System.out.println();
+        System.out.printf(Locale.ROOT,
+                "gc: %d pauses, %.1f ms total (%.2f%% of run), p99 %.2f ms, max %.2f ms%n",
+                gc.pauseCount(),
+                millis(gc.totalPauseNanos()),
+                100.0 * gc.totalPauseNanos() / (seconds * 1e9),
+                millis(gc.pausePercentile(99)),
+                millis(gc.maxPauseNanos()));
+
+        return exitCode;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private LoadGenerator() {
+        // no instances
+    }
+}
@@ -0,0 +1,96 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream.benchmark;
+
+import com.bendb.cryptostream.CryptoInputStream;
+import com.bendb.cryptostream.CryptoOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A video player's seek bar being dragged: each operation opens a large
+ * file, skips to a random position and reads a window of frames from it
+ * sequentially.
+ */
+final class SeekScrub extends Workload {
+
+    static final String NAME = "seek-scrub";
+    static final int DEFAULT_THREADS = 4;
+
+    private static final int FILE_COUNT = 2;
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    private static final int WINDOW_SIZE = 512 * 1024;
+
+    private File[] files;
+
+    SeekScrub(int threads) {
+        super(NAME, threads);
+    }
+
+    @Override
+    protected void prepare(Random random) throws IOException {
+        byte[] chunk = new byte[1024 * 1024];
+        files = new File[FILE_COUNT];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(dir, "video-" + i);
+            try (CryptoOutputStream out = openOutput(files[i])) {
+                for (int written = 0; written < FILE_SIZE; written += chunk.length) {
+                    random.nextBytes(chunk);
+                    out.write(chunk);
+                }
+            }
+        }
+    }
+
+    @Override
+    Worker newWorker(Random random) {
+        return new Worker() {
+            private final byte[] buffer = new byte[64 * 1024];
+
+            @Override
+            public long run() throws IOException {
+                File file = files[random.nextInt(files.length)];
+                long target = (long) random.nextInt(FILE_SIZE - WINDOW_SIZE);
+                try (CryptoInputStream in = openInput(file)) {
+                    long skipped = 0;
+                    while (skipped < target) {
+                        long n = in.skip(target - skipped);
+                        if (n <= 0) {
+                            throw new IOException("Could not seek to " + target);
+                        }
+                        skipped += n;
+                    }
+
+                    long read = 0;
+                    while (read < WINDOW_SIZE) {
+                        int n = in.read(buffer, 0, (int) Math.min(buffer.length, WINDOW_SIZE - read));
+                        if (n == -1) {
+                            break;
+                        }
+                        read += n;
+                    }
+                    return read;
+                }
+            }
+
+            @Override
+            public long thinkMillis() {
+                return random.nextInt(10);
+            }
+        };
+    }
+}
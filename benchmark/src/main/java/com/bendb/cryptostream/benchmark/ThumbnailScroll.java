@@ -0,0 +1,88 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream.benchmark;
+
+import com.bendb.cryptostream.CryptoInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A gallery grid being flung back and forth: each worker opens and fully
+ * decrypts a page of small thumbnails in a row, then pauses as if the user
+ * had stopped scrolling.  With many workers, pages from different workers
+ * overlap, producing bursts of hundreds of concurrent small opens.
+ */
+final class ThumbnailScroll extends Workload {
+
+    static final String NAME = "thumbnail-scroll";
+    static final int DEFAULT_THREADS = 64;
+
+    private static final int FILE_COUNT = 400;
+    private static final int MIN_SIZE = 8 * 1024;
+    private static final int MAX_SIZE = 64 * 1024;
+    private static final int PAGE_SIZE = 24;
+
+    private File[] files;
+
+    ThumbnailScroll(int threads) {
+        super(NAME, threads);
+    }
+
+    @Override
+    protected void prepare(Random random) throws IOException {
+        byte[] plaintext = new byte[MAX_SIZE];
+        files = new File[FILE_COUNT];
+        for (int i = 0; i < files.length; i++) {
+            random.nextBytes(plaintext);
+            files[i] = new File(dir, "thumb-" + i);
+            writeFile(files[i], plaintext, MIN_SIZE + random.nextInt(MAX_SIZE - MIN_SIZE));
+        }
+    }
+
+    @Override
+    Worker newWorker(Random random) {
+        return new Worker() {
+            private final byte[] buffer = new byte[16 * 1024];
+            private int position = random.nextInt(FILE_COUNT);
+            private int direction = 1;
+            private int remainingInPage = PAGE_SIZE;
+
+            @Override
+            public long run() throws IOException {
+                position = Math.floorMod(position + direction, FILE_COUNT);
+                remainingInPage--;
+                try (CryptoInputStream in = openInput(files[position])) {
+                    return drain(in, buffer);
+                }
+            }
+
+            @Override
+            public long thinkMillis() {
+                if (remainingInPage > 0) {
+                    return 0;
+                }
+
+                // End of a fling: sometimes reverse, then pause briefly.
+                remainingInPage = PAGE_SIZE;
+                if (random.nextInt(4) == 0) {
+                    direction = -direction;
+                }
+                return 20 + random.nextInt(200);
+            }
+        };
+    }
+}
@@ -0,0 +1,128 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream.benchmark;
+
+import com.bendb.cryptostream.CipherSuite;
+import com.bendb.cryptostream.CryptoInputStream;
+import com.bendb.cryptostream.CryptoOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A workload profile: a set of files to prepare, and an operation that a
+ * number of threads perform over and over against them.
+ */
+abstract class Workload {
+
+    /**
+     * One thread's view of a workload.  Workers are confined to a single
+     * thread, so they may keep state, such as a scroll position, and reuse
+     * buffers between operations.
+     */
+    interface Worker {
+        /**
+         * Performs one operation, returning the number of plaintext bytes
+         * it read or wrote.  Only this call is timed.
+         */
+        long run() throws IOException;
+
+        /**
+         * How long to idle before the next operation, in milliseconds; this
+         * models a user pausing between bursts.
+         */
+        long thinkMillis();
+    }
+
+    final String name;
+    final int threads;
+
+    protected File dir;
+    protected byte[] key;
+    protected boolean secureMemory;
+
+    Workload(String name, int threads) {
+        this.name = name;
+        this.threads = threads;
+    }
+
+    static Workload create(String spec) {
+        String[] parts = spec.split(":", 2);
+        Integer threads = parts.length > 1 ? Integer.valueOf(parts[1]) : null;
+        switch (parts[0]) {
+            case ThumbnailScroll.NAME:
+                return new ThumbnailScroll(threads != null ? threads : ThumbnailScroll.DEFAULT_THREADS);
+            case SeekScrub.NAME:
+                return new SeekScrub(threads != null ? threads : SeekScrub.DEFAULT_THREADS);
+            case BulkImport.NAME:
+                return new BulkImport(threads != null ? threads : BulkImport.DEFAULT_THREADS);
+            default:
+                throw new IllegalArgumentException("Unknown workload: " + parts[0]);
+        }
+    }
+
+    final void setUp(File dir, byte[] key, boolean secureMemory) throws IOException {
+        this.dir = new File(dir, name);
+        if (!this.dir.mkdirs() && !this.dir.isDirectory()) {
+            throw new IOException("Could not create " + this.dir);
+        }
+        this.key = key;
+        this.secureMemory = secureMemory;
+        prepare(new Random(name.hashCode()));
+    }
+
+    /**
+     * Creates the files the workload operates on.
+     */
+    protected abstract void prepare(Random random) throws IOException;
+
+    abstract Worker newWorker(Random random);
+
+    protected CryptoInputStream openInput(File file) throws IOException {
+        return new CryptoInputStream(new FileInputStream(file), key, null, secureMemory);
+    }
+
+    protected CryptoOutputStream openOutput(File file) throws IOException {
+        return new CryptoOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 64 * 1024),
+                key,
+                CipherSuite.preferred(),
+                false,
+                secureMemory);
+    }
+
+    protected void writeFile(File file, byte[] plaintext, int length) throws IOException {
+        try (CryptoOutputStream out = openOutput(file)) {
+            out.write(plaintext, 0, length);
+        }
+    }
+
+    /**
+     * Reads the stream to the end into {@code buffer}, returning the number
+     * of bytes read.
+     */
+    protected static long drain(CryptoInputStream in, byte[] buffer) throws IOException {
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            total += n;
+        }
+        return total;
+    }
+}
@@ -2,8 +2,18 @@
 set -e
 
 # Script to build libsodium for Android
-# Usage: ./build-libsodium.sh [VERSION]
+# Usage: ./build-libsodium.sh [--speed] [VERSION]
 # Example: ./build-libsodium.sh 1.0.20-RELEASE
+#
+# By default libsodium is built for size, and installed to libsodium/lib.
+# With --speed it is built with -O3 instead of -Os, and installed to
+# libsodium/lib-speed; see LIBSODIUM.md.
+
+OPTIMIZE="size"
+if [ "$1" = "--speed" ]; then
+    OPTIMIZE="speed"
+    shift
+fi
 
 VERSION="${1:-1.0.20-RELEASE}"
 SCRIPT_DIR="$(cd "$(dirname "${BASH_SOURCE[0]}")" && pwd)"
@@ -11,6 +21,12 @@ WORK_DIR="${SCRIPT_DIR}/build-temp"
 TEMP_OUTPUT_DIR="${SCRIPT_DIR}/libsodium-new"
 FINAL_OUTPUT_DIR="${SCRIPT_DIR}/libsodium"
 
+if [ "$OPTIMIZE" = "speed" ]; then
+    LIB_DIR_NAME="lib-speed"
+else
+    LIB_DIR_NAME="lib"
+fi
+
 # Android ABIs to build
 ABIS=("armeabi-v7a" "arm64-v8a" "x86" "x86_64")
 
@@ -35,7 +51,8 @@ echo "=================================================="
 echo "Building libsodium ${VERSION} for Android"
 echo "=================================================="
 echo "NDK: $ANDROID_NDK_HOME"
-echo "Output: $FINAL_OUTPUT_DIR"
+echo "Optimized for: $OPTIMIZE"
+echo "Output: $FINAL_OUTPUT_DIR/$LIB_DIR_NAME"
 echo ""
 
 # Clean and create work directories
@@ -54,6 +71,19 @@ cd libsodium
 echo "Running autogen.sh..."
 ./autogen.sh
 
+# The dist-build scripts hard-code -Os in CFLAGS, so the only way to change
+# the optimization level is to rewrite them.
+if [ "$OPTIMIZE" = "speed" ]; then
+    echo "Switching dist-build scripts from -Os to -O3..."
+    sed -i.bak -e 's/-Os/-O3/g' dist-build/android-*.sh
+fi
+
+NM=$(ls "$ANDROID_NDK_HOME"/toolchains/llvm/prebuilt/*/bin/llvm-nm 2>/dev/null | head -1)
+if [ "$OPTIMIZE" = "speed" ] && [ -z "$NM" ]; then
+    echo "Error: llvm-nm not found in the NDK; cannot verify the SIMD ChaCha20 implementations"
+    exit 1
+fi
+
 # Build for each ABI
 for ABI in "${ABIS[@]}"; do
     echo ""
@@ -104,6 +134,23 @@ for ABI in "${ABIS[@]}"; do
 
     cp "${BUILD_DIR}/lib/libsodium.a" "$TEMP_OUTPUT_DIR/lib/${ABI}/"
 
+    # On x86, libsodium selects SSSE3/AVX2 ChaCha20 at runtime, but only if
+    # those implementations made it into the archive.  A speed build that
+    # silently falls back to the reference code is not worth shipping.
+    if [ "$OPTIMIZE" = "speed" ]; then
+        case "$ABI" in
+            x86|x86_64)
+                SYMBOLS=$("$NM" "$TEMP_OUTPUT_DIR/lib/${ABI}/libsodium.a" 2>/dev/null)
+                for IMPL in ssse3 avx2; do
+                    if ! echo "$SYMBOLS" | grep -q " [TDR] crypto_stream_chacha20_dolbeau_${IMPL}_implementation"; then
+                        echo "Error: ${ABI} build is missing the ${IMPL} ChaCha20 implementation"
+                        exit 1
+                    fi
+                done
+                ;;
+        esac
+    fi
+
     # Copy headers from the first build (they should be identical across ABIs)
     if [ ! -f "$TEMP_OUTPUT_DIR/include/sodium.h" ]; then
         cp -r "${BUILD_DIR}/include/"* "$TEMP_OUTPUT_DIR/include/"
@@ -115,11 +162,25 @@ done
 # All builds succeeded - atomically replace the old version
 echo ""
 echo "All ABIs built successfully. Installing..."
-if [ -d "$FINAL_OUTPUT_DIR" ]; then
-    mv "$FINAL_OUTPUT_DIR" "${FINAL_OUTPUT_DIR}.old"
+if [ "$OPTIMIZE" = "speed" ]; then
+    # Headers are shared with the size build; only replace the libraries.
+    mkdir -p "$FINAL_OUTPUT_DIR"
+    if [ -d "$FINAL_OUTPUT_DIR/$LIB_DIR_NAME" ]; then
+        mv "$FINAL_OUTPUT_DIR/$LIB_DIR_NAME" "$FINAL_OUTPUT_DIR/${LIB_DIR_NAME}.old"
+    fi
+    mv "$TEMP_OUTPUT_DIR/lib" "$FINAL_OUTPUT_DIR/$LIB_DIR_NAME"
+    rm -rf "$FINAL_OUTPUT_DIR/${LIB_DIR_NAME}.old"
+    rm -rf "$TEMP_OUTPUT_DIR"
+else
+    if [ -d "$FINAL_OUTPUT_DIR/lib-speed" ]; then
+        mv "$FINAL_OUTPUT_DIR/lib-speed" "$TEMP_OUTPUT_DIR/lib-speed"
+    fi
+    if [ -d "$FINAL_OUTPUT_DIR" ]; then
+        mv "$FINAL_OUTPUT_DIR" "${FINAL_OUTPUT_DIR}.old"
+    fi
+    mv "$TEMP_OUTPUT_DIR" "$FINAL_OUTPUT_DIR"
+    rm -rf "${FINAL_OUTPUT_DIR}.old"
 fi
-mv "$TEMP_OUTPUT_DIR" "$FINAL_OUTPUT_DIR"
-rm -rf "${FINAL_OUTPUT_DIR}.old"
 
 # Clean up
 cd "$SCRIPT_DIR"
@@ -133,7 +194,7 @@ echo "Libraries installed to: $FINAL_OUTPUT_DIR"
 echo ""
 echo "Built ABIs:"
 for ABI in "${ABIS[@]}"; do
-    SIZE=$(du -h "$FINAL_OUTPUT_DIR/lib/${ABI}/libsodium.a" | cut -f1)
+    SIZE=$(du -h "$FINAL_OUTPUT_DIR/$LIB_DIR_NAME/${ABI}/libsodium.a" | cut -f1)
     echo "  - ${ABI}: ${SIZE}"
 done
 echo ""
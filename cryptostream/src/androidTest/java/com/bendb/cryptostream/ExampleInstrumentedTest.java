@@ -1,5 +1,7 @@
 package com.bendb.cryptostream;
 
+import android.os.Build;
+
 import androidx.test.platform.app.InstrumentationRegistry;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import org.junit.Assert;
@@ -10,8 +12,25 @@ import org.junit.runner.RunWith;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
 
 /**
  * Instrumented test, which will execute on an Android device.
@@ -549,4 +568,1292 @@ public class ExampleInstrumentedTest {
             }
         }
     }
+
+    @Test
+    public void digestRoundTrip() throws Exception {
+        int bs = Native.blockSize();
+        byte[] key = Native.generateKey();
+        byte[] testData = new byte[bs * 3 + 17];
+        new SecureRandom().nextBytes(testData);
+
+        byte[] digest;
+        byte[] encrypted;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            try (CryptoOutputStream out = new CryptoOutputStream(baos, key, true)) {
+                out.write(testData, 0, 100);
+                out.write(testData, 100, testData.length - 100);
+                digest = out.flushFinalBlock();
+            }
+            encrypted = baos.toByteArray();
+        }
+
+        Assert.assertNotNull(digest);
+        Assert.assertEquals(Native.digestSize(), digest.length);
+
+        byte[] decrypted;
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(encrypted);
+             ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            try (CryptoInputStream in = new CryptoInputStream(bais, key, digest)) {
+                byte[] buffer = new byte[1000];
+                while (true) {
+                    int n = in.read(buffer);
+                    if (n == -1) break;
+                    baos.write(buffer, 0, n);
+                }
+            }
+            decrypted = baos.toByteArray();
+        }
+
+        Assert.assertArrayEquals(testData, decrypted);
+    }
+
+    @Test
+    public void digestDoesNotDependOnNonce() throws Exception {
+        byte[] key = Native.generateKey();
+        byte[] testData = "Hello, World!".getBytes();
+
+        byte[] first;
+        try (CryptoOutputStream out = new CryptoOutputStream(new ByteArrayOutputStream(), key, true)) {
+            out.write(testData);
+            first = out.flushFinalBlock();
+        }
+
+        byte[] second;
+        try (CryptoOutputStream out = new CryptoOutputStream(new ByteArrayOutputStream(), Native.generateKey(), true)) {
+            out.write(testData);
+            second = out.flushFinalBlock();
+        }
+
+        Assert.assertArrayEquals(first, second);
+    }
+
+    @Test
+    public void noDigestByDefault() throws Exception {
+        byte[] key = Native.generateKey();
+        try (CryptoOutputStream out = new CryptoOutputStream(new ByteArrayOutputStream(), key)) {
+            out.write(42);
+            Assert.assertNull(out.flushFinalBlock());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void digestMismatch() throws Exception {
+        byte[] key = Native.generateKey();
+        byte[] testData = "test".getBytes();
+
+        byte[] digest;
+        byte[] encrypted;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            try (CryptoOutputStream out = new CryptoOutputStream(baos, key, true)) {
+                out.write(testData);
+                digest = out.flushFinalBlock();
+            }
+            encrypted = baos.toByteArray();
+        }
+
+        digest[0] ^= 1;
+
+        try (CryptoInputStream in = new CryptoInputStream(new ByteArrayInputStream(encrypted), key, digest)) {
+            in.read(new byte[100]); // Should throw
+        }
+    }
+
+    @Test
+    public void digestVerifiedAcrossSkip() throws Exception {
+        int bs = Native.blockSize();
+        byte[] key = Native.generateKey();
+        byte[] testData = new byte[bs * 4];
+        new SecureRandom().nextBytes(testData);
+
+        byte[] digest;
+        byte[] encrypted;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            try (CryptoOutputStream out = new CryptoOutputStream(baos, key, true)) {
+                out.write(testData);
+                digest = out.flushFinalBlock();
+            }
+            encrypted = baos.toByteArray();
+        }
+
+        try (CryptoInputStream in = new CryptoInputStream(new ByteArrayInputStream(encrypted), key, digest)) {
+            Assert.assertEquals(bs * 3, in.skip(bs * 3));
+
+            byte[] lastBlock = new byte[bs];
+            int read = 0;
+            while (read < bs) {
+                int n = in.read(lastBlock, read, lastBlock.length - read);
+                if (n == -1) break;
+                read += n;
+            }
+
+            Assert.assertEquals(bs, read);
+            Assert.assertArrayEquals(Arrays.copyOfRange(testData, bs * 3, bs * 4), lastBlock);
+            Assert.assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void compressedRoundTripWithSeek() throws Exception {
+        byte[] key = Native.generateKey();
+        int chunkSize = 4096;
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < chunkSize * 10 + 123; i++) {
+            sb.append("{\"line\": ").append(i).append(", \"level\": \"info\"}\n");
+        }
+        byte[] testData = sb.toString().getBytes();
+
+        File file = File.createTempFile("compressed", ".bin");
+        try {
+            try (CompressedCryptoOutputStream out = new CompressedCryptoOutputStream(
+                    new FileOutputStream(file), key, chunkSize, Deflater.BEST_SPEED)) {
+                out.write(testData);
+            }
+
+            Assert.assertTrue(file.length() < testData.length / 2);
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 CompressedCryptoInputStream in = new CompressedCryptoInputStream(raf.getChannel(), key)) {
+                Assert.assertEquals(testData.length, in.length());
+
+                byte[] all = new byte[testData.length];
+                int read = 0;
+                while (read < all.length) {
+                    int n = in.read(all, read, all.length - read);
+                    if (n == -1) break;
+                    read += n;
+                }
+                Assert.assertArrayEquals(testData, all);
+                Assert.assertEquals(-1, in.read());
+
+                long target = chunkSize * 7L + 5;
+                in.seek(target);
+                byte[] some = new byte[chunkSize];
+                read = 0;
+                while (read < some.length) {
+                    int n = in.read(some, read, some.length - read);
+                    if (n == -1) break;
+                    read += n;
+                }
+                Assert.assertArrayEquals(
+                        Arrays.copyOfRange(testData, (int) target, (int) target + chunkSize), some);
+
+                in.seek(3);
+                Assert.assertEquals(testData[3] & 0xFF, in.read());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void compressedIncompressibleData() throws Exception {
+        byte[] key = Native.generateKey();
+        byte[] testData = new byte[CompressedCryptoOutputStream.DEFAULT_CHUNK_SIZE * 2 + 99];
+        new SecureRandom().nextBytes(testData);
+
+        File file = File.createTempFile("compressed", ".bin");
+        try {
+            try (CompressedCryptoOutputStream out = new CompressedCryptoOutputStream(new FileOutputStream(file), key)) {
+                for (int i = 0; i < testData.length; i += 1000) {
+                    out.write(testData, i, Math.min(1000, testData.length - i));
+                }
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 CompressedCryptoInputStream in = new CompressedCryptoInputStream(raf.getChannel(), key)) {
+                Assert.assertEquals(testData.length - 50, in.skip(testData.length - 50));
+                byte[] tail = new byte[100];
+                Assert.assertEquals(50, in.read(tail));
+                Assert.assertArrayEquals(
+                        Arrays.copyOfRange(testData, testData.length - 50, testData.length),
+                        Arrays.copyOf(tail, 50));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void compressedWrongKey() throws Exception {
+        File file = File.createTempFile("compressed", ".bin");
+        try {
+            try (CompressedCryptoOutputStream out = new CompressedCryptoOutputStream(
+                    new FileOutputStream(file), Native.generateKey())) {
+                out.write("test".getBytes());
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                new CompressedCryptoInputStream(raf.getChannel(), Native.generateKey()); // Should throw
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void compressedHeaderedStreams() throws Exception {
+        byte[] key = Native.generateKey();
+        byte[] testData = new byte[CompressedCryptoOutputStream.DEFAULT_CHUNK_SIZE + 99];
+        Arrays.fill(testData, (byte) 'z');
+
+        ByteArrayOutputStream headerless = new ByteArrayOutputStream();
+        try (CompressedCryptoOutputStream out = new CompressedCryptoOutputStream(headerless, key)) {
+            out.write(testData);
+        }
+
+        // A header in front of the same nonce and ciphertext makes an
+        // XChaCha20 stream with a header.
+        File file = File.createTempFile("compressed", ".bin");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                StreamHeader.writePrefix(out, CipherSuite.XCHACHA20);
+                out.write(headerless.toByteArray());
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 CompressedCryptoInputStream in = new CompressedCryptoInputStream(raf.getChannel(), key)) {
+                Assert.assertEquals(testData.length, in.length());
+                Assert.assertArrayEquals(testData, readAll(in));
+            }
+
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                StreamHeader.writePrefix(out, CipherSuite.AES256GCM);
+                out.write(headerless.toByteArray());
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                new CompressedCryptoInputStream(raf.getChannel(), key);
+                Assert.fail("Expected an AES-256-GCM stream to be rejected");
+            } catch (IOException expected) {
+                // ok
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void batchJobRoundTrip() throws Exception {
+        byte[] key = Native.generateKey();
+        File root = createTempDir();
+        try {
+            File plain = new File(root, "plain");
+            File encrypted = new File(root, "encrypted");
+            File decrypted = new File(root, "decrypted");
+            File checkpoint = new File(root, "checkpoint");
+
+            SecureRandom random = new SecureRandom();
+            byte[][] contents = new byte[6][];
+            for (int i = 0; i < contents.length; i++) {
+                contents[i] = new byte[random.nextInt(Native.blockSize() * 3)];
+                random.nextBytes(contents[i]);
+                File file = new File(plain, "dir" + (i % 3) + File.separator + "file" + i);
+                file.getParentFile().mkdirs();
+                try (FileOutputStream out = new FileOutputStream(file)) {
+                    out.write(contents[i]);
+                }
+            }
+
+            CryptoBatchJob.Result result = new CryptoBatchJob.Builder(CryptoBatchJob.Mode.ENCRYPT, plain, encrypted, key)
+                    .parallelism(3)
+                    .checkpoint(checkpoint)
+                    .build()
+                    .run();
+            Assert.assertEquals(contents.length, result.filesCompleted);
+            Assert.assertEquals(0, result.filesFailed);
+
+            // Everything is already in the checkpoint, so a second run is a no-op.
+            result = new CryptoBatchJob.Builder(CryptoBatchJob.Mode.ENCRYPT, plain, encrypted, key)
+                    .checkpoint(checkpoint)
+                    .build()
+                    .run();
+            Assert.assertEquals(0, result.filesCompleted);
+            Assert.assertEquals(contents.length, result.filesSkipped);
+
+            result = new CryptoBatchJob.Builder(CryptoBatchJob.Mode.DECRYPT, encrypted, decrypted, key)
+                    .parallelism(2)
+                    .build()
+                    .run();
+            Assert.assertEquals(contents.length, result.filesCompleted);
+
+            for (int i = 0; i < contents.length; i++) {
+                File file = new File(decrypted, "dir" + (i % 3) + File.separator + "file" + i);
+                Assert.assertArrayEquals(contents[i], readFile(file));
+            }
+        } finally {
+            deleteRecursively(root);
+        }
+    }
+
+    @Test
+    public void batchJobDoesNotFollowDirectoryLinks() throws Exception {
+        if (Build.VERSION.SDK_INT < 26) {
+            return;
+        }
+
+        byte[] key = Native.generateKey();
+        File root = createTempDir();
+        File plain = new File(root, "plain");
+        File loop = new File(plain, "dir" + File.separator + "loop");
+        try {
+            Assert.assertTrue(loop.getParentFile().mkdirs());
+            try (FileOutputStream out = new FileOutputStream(new File(loop.getParentFile(), "file"))) {
+                out.write(new byte[100]);
+            }
+            java.nio.file.Files.createSymbolicLink(loop.toPath(), plain.toPath());
+
+            CryptoBatchJob.Builder builder = new CryptoBatchJob.Builder(CryptoBatchJob.Mode.ENCRYPT, plain, new File(root, "encrypted"), key);
+            CryptoBatchJob.Result result = builder.build().run();
+            Assert.assertEquals(1, result.filesCompleted);
+            Assert.assertEquals(0, result.filesFailed);
+
+            try {
+                builder.build();
+                Assert.fail("Expected a second build() to fail");
+            } catch (IllegalStateException expected) {
+                // ok
+            }
+        } finally {
+            loop.delete();
+            deleteRecursively(root);
+        }
+    }
+
+    @Test
+    public void batchJobSurvivesThrowingListener() throws Exception {
+        byte[] key = Native.generateKey();
+        File root = createTempDir();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            File plain = new File(root, "plain");
+            Assert.assertTrue(plain.mkdir());
+            for (int i = 0; i < 10; i++) {
+                try (FileOutputStream out = new FileOutputStream(new File(plain, "file" + i))) {
+                    out.write(new byte[100]);
+                }
+            }
+
+            CryptoBatchJob job = new CryptoBatchJob.Builder(CryptoBatchJob.Mode.ENCRYPT, plain, new File(root, "encrypted"), key)
+                    .parallelism(1)
+                    .listener(new CryptoBatchJob.Listener() {
+                        @Override
+                        public void onFileCompleted(File source, File destination, long filesCompleted, long bytesCompleted) {
+                            throw new IllegalStateException("listener bug");
+                        }
+
+                        @Override
+                        public void onFileFailed(File source, IOException error) {
+                            throw new IllegalStateException("listener bug");
+                        }
+                    })
+                    .build();
+
+            // With its only worker dead, the job would block forever on the full queue.
+            Future<CryptoBatchJob.Result> result = executor.submit(job::run);
+            try {
+                result.get(30, TimeUnit.SECONDS);
+                Assert.fail("Expected the listener's exception");
+            } catch (java.util.concurrent.ExecutionException e) {
+                Assert.assertEquals("listener bug", e.getCause().getMessage());
+            }
+            Assert.assertEquals(10, new File(root, "encrypted").list().length);
+        } finally {
+            executor.shutdownNow();
+            deleteRecursively(root);
+        }
+    }
+
+    @Test
+    public void appendContinuesKeystream() throws Exception {
+        int bs = Native.blockSize();
+        byte[] key = Native.generateKey();
+        byte[] testData = new byte[100 + bs * 2 + 5 + 64];
+        new SecureRandom().nextBytes(testData);
+
+        File file = File.createTempFile("append", ".bin");
+        try {
+            try (CryptoOutputStream out = new CryptoOutputStream(new FileOutputStream(file), key)) {
+                out.write(testData, 0, 100);
+            }
+
+            // Starts mid-way through a 64-byte block and spans several buffers.
+            try (CryptoOutputStream out = CryptoOutputStream.append(file, key)) {
+                out.write(testData, 100, bs * 2 + 5);
+            }
+
+            // Starts mid-block and ends exactly on a block boundary.
+            try (CryptoOutputStream out = CryptoOutputStream.append(file, key)) {
+                for (int i = 100 + bs * 2 + 5; i < testData.length; i++) {
+                    out.write(testData[i]);
+                }
+            }
+
+            // Appending nothing leaves the file untouched.
+            CryptoOutputStream.append(file, key).close();
+
+            Assert.assertEquals(Native.nonceSize() + testData.length, file.length());
+
+            byte[] decrypted;
+            try (CryptoInputStream in = new CryptoInputStream(new FileInputStream(file), key);
+                 ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+                byte[] buffer = new byte[1000];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    baos.write(buffer, 0, n);
+                }
+                decrypted = baos.toByteArray();
+            }
+
+            Assert.assertArrayEquals(testData, decrypted);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void randomAccessPatchInPlace() throws Exception {
+        byte[] key = Native.generateKey();
+        int chunkSize = 1024;
+        byte[] testData = new byte[chunkSize * 5 + 300];
+        new SecureRandom().nextBytes(testData);
+
+        File file = File.createTempFile("random", ".bin");
+        try {
+            try (CryptoRandomAccessFile raf = new CryptoRandomAccessFile(file, "rw", key, chunkSize)) {
+                raf.write(testData);
+                Assert.assertEquals(testData.length, raf.length());
+            }
+
+            byte[] before = readFile(file);
+
+            byte[] patch = new byte[100];
+            Arrays.fill(patch, (byte) 7);
+            System.arraycopy(patch, 0, testData, chunkSize - 50, patch.length);
+
+            try (CryptoRandomAccessFile raf = new CryptoRandomAccessFile(file, "rw", key)) {
+                raf.seek(chunkSize - 50);
+                raf.write(patch);
+            }
+
+            byte[] after = readFile(file);
+            Assert.assertEquals(before.length, after.length);
+
+            // Only the two chunks that were touched are rewritten, each with a new nonce.
+            int stride = Native.nonceSize() + chunkSize;
+            int header = 8;
+            Assert.assertArrayEquals(
+                    Arrays.copyOfRange(before, header + stride * 2, before.length),
+                    Arrays.copyOfRange(after, header + stride * 2, after.length));
+            Assert.assertFalse(Arrays.equals(
+                    Arrays.copyOfRange(before, header, header + Native.nonceSize()),
+                    Arrays.copyOfRange(after, header, header + Native.nonceSize())));
+
+            try (CryptoRandomAccessFile raf = new CryptoRandomAccessFile(file, "r", key)) {
+                byte[] decrypted = new byte[testData.length];
+                int read = 0;
+                while (read < decrypted.length) {
+                    int n = raf.read(decrypted, read, decrypted.length - read);
+                    if (n == -1) break;
+                    read += n;
+                }
+                Assert.assertArrayEquals(testData, decrypted);
+                Assert.assertEquals(-1, raf.read());
+
+                raf.seek(chunkSize * 3 + 1);
+                Assert.assertEquals(testData[chunkSize * 3 + 1] & 0xFF, raf.read());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void randomAccessWritePastEnd() throws Exception {
+        byte[] key = Native.generateKey();
+
+        File file = File.createTempFile("random", ".bin");
+        try {
+            try (CryptoRandomAccessFile raf = new CryptoRandomAccessFile(file, "rw", key, 64)) {
+                raf.write(1);
+                raf.seek(200);
+                raf.write(2);
+                Assert.assertEquals(201, raf.length());
+
+                byte[] all = new byte[201];
+                raf.seek(0);
+                Assert.assertEquals(201, raf.read(all));
+
+                byte[] expected = new byte[201];
+                expected[0] = 1;
+                expected[200] = 2;
+                Assert.assertArrayEquals(expected, all);
+            }
+
+            try (CryptoRandomAccessFile raf = new CryptoRandomAccessFile(file, "r", key)) {
+                Assert.assertEquals(201, raf.length());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void headerXChaCha20RoundTrip() throws Exception {
+        int bs = Native.blockSize();
+        byte[] key = Native.generateKey();
+        byte[] testData = new byte[bs * 3 + 10];
+        new SecureRandom().nextBytes(testData);
+
+        byte[] encrypted = encrypt(key, CipherSuite.XCHACHA20, testData);
+        Assert.assertEquals(StreamHeader.SIZE + testData.length, encrypted.length);
+
+        try (CryptoInputStream in = new CryptoInputStream(new ByteArrayInputStream(encrypted), key)) {
+            Assert.assertEquals(CipherSuite.XCHACHA20, in.getCipherSuite());
+            Assert.assertEquals(bs * 2 + 1, in.skip(bs * 2 + 1));
+            Assert.assertArrayEquals(
+                    Arrays.copyOfRange(testData, bs * 2 + 1, testData.length),
+                    readAll(in));
+        }
+    }
+
+    @Test
+    public void appendToHeaderedStream() throws Exception {
+        byte[] key = Native.generateKey();
+        byte[] testData = new byte[1000];
+        new SecureRandom().nextBytes(testData);
+
+        File file = File.createTempFile("append", ".bin");
+        try {
+            try (CryptoOutputStream out = new CryptoOutputStream(new FileOutputStream(file), key, CipherSuite.XCHACHA20)) {
+                out.write(testData, 0, 333);
+            }
+            try (CryptoOutputStream out = CryptoOutputStream.append(file, key)) {
+                out.write(testData, 333, testData.length - 333);
+            }
+
+            try (CryptoInputStream in = new CryptoInputStream(new FileInputStream(file), key)) {
+                Assert.assertArrayEquals(testData, readAll(in));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void aesGcmRoundTrip() throws Exception {
+        if (!CipherSuite.AES256GCM.isAvailable()) {
+            return;
+        }
+
+        int bs = Native.blockSize();
+        byte[] key = Native.generateKey();
+        SecureRandom random = new SecureRandom();
+        int[] sizes = {0, 1, bs - 1, bs, bs + 1, bs * 3};
+        for (int size : sizes) {
+            byte[] testData = new byte[size];
+            random.nextBytes(testData);
+
+            byte[] digest;
+            byte[] encrypted;
+            try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+                try (CryptoOutputStream out = new CryptoOutputStream(baos, key, CipherSuite.AES256GCM, true)) {
+                    out.write(testData, 0, size / 3);
+                    out.write(testData, size / 3, size - size / 3);
+                    digest = out.flushFinalBlock();
+                }
+                encrypted = baos.toByteArray();
+            }
+
+            int segments = size / bs + 1;
+            Assert.assertEquals(StreamHeader.SIZE + size + segments * Native.AEAD_TAG_SIZE, encrypted.length);
+
+            try (CryptoInputStream in = new CryptoInputStream(new ByteArrayInputStream(encrypted), key, digest)) {
+                Assert.assertEquals(CipherSuite.AES256GCM, in.getCipherSuite());
+                Assert.assertArrayEquals(testData, readAll(in));
+            }
+        }
+    }
+
+    @Test
+    public void aesGcmSkip() throws Exception {
+        if (!CipherSuite.AES256GCM.isAvailable()) {
+            return;
+        }
+
+        int bs = Native.blockSize();
+        byte[] key = Native.generateKey();
+        byte[] testData = new byte[bs * 4 + 100];
+        new SecureRandom().nextBytes(testData);
+
+        byte[] encrypted = encrypt(key, CipherSuite.AES256GCM, testData);
+
+        try (CryptoInputStream in = new CryptoInputStream(new ByteArrayInputStream(encrypted), key)) {
+            Assert.assertEquals(5, in.read(new byte[5]));
+            Assert.assertEquals(bs * 3, in.skip(bs * 3));
+            Assert.assertArrayEquals(
+                    Arrays.copyOfRange(testData, bs * 3 + 5, testData.length),
+                    readAll(in));
+        }
+    }
+
+    @Test
+    public void aesGcmSkipToEndDetectsTruncation() throws Exception {
+        if (!CipherSuite.AES256GCM.isAvailable()) {
+            return;
+        }
+
+        int bs = Native.blockSize();
+        byte[] key = Native.generateKey();
+        byte[] testData = new byte[bs * 4 + 100];
+        new SecureRandom().nextBytes(testData);
+
+        byte[] encrypted = encrypt(key, CipherSuite.AES256GCM, testData);
+
+        try (CryptoInputStream in = new CryptoInputStream(new ByteArrayInputStream(encrypted), key)) {
+            Assert.assertEquals(testData.length, in.skip(testData.length + bs));
+            Assert.assertEquals(-1, in.read());
+        }
+
+        // Cut into the final segment, and cut off the final segment entirely.
+        int[] cuts = {5, 100 + Native.AEAD_TAG_SIZE};
+        for (int cut : cuts) {
+            byte[] truncated = Arrays.copyOf(encrypted, encrypted.length - cut);
+            try (CryptoInputStream in = new CryptoInputStream(new ByteArrayInputStream(truncated), key)) {
+                in.skip(testData.length + bs);
+                in.read();
+                Assert.fail("Expected truncation to be detected, cutting " + cut + " bytes");
+            } catch (IOException expected) {
+                // ok
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void aesGcmTamperDetected() throws Exception {
+        if (!CipherSuite.AES256GCM.isAvailable()) {
+            throw new IOException("skipped");
+        }
+
+        byte[] key = Native.generateKey();
+        byte[] encrypted = encrypt(key, CipherSuite.AES256GCM, "Hello, World!".getBytes());
+        encrypted[StreamHeader.SIZE + 3] ^= 1;
+
+        try (CryptoInputStream in = new CryptoInputStream(new ByteArrayInputStream(encrypted), key)) {
+            readAll(in); // Should throw
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void aesGcmTruncationDetected() throws Exception {
+        if (!CipherSuite.AES256GCM.isAvailable()) {
+            throw new IOException("skipped");
+        }
+
+        int bs = Native.blockSize();
+        byte[] key = Native.generateKey();
+        byte[] encrypted = encrypt(key, CipherSuite.AES256GCM, new byte[bs * 2]);
+
+        // Drop the (empty) final segment, leaving two whole segments.
+        byte[] truncated = Arrays.copyOf(encrypted, encrypted.length - Native.AEAD_TAG_SIZE);
+
+        try (CryptoInputStream in = new CryptoInputStream(new ByteArrayInputStream(truncated), key)) {
+            readAll(in); // Should throw
+        }
+    }
+
+    @Test
+    public void publisherToSubscriberRoundTrip() throws Exception {
+        if (Build.VERSION.SDK_INT < 30) {
+            return;
+        }
+
+        byte[] key = Native.generateKey();
+        byte[] testData = new byte[Native.blockSize() * 5 + 123];
+        new SecureRandom().nextBytes(testData);
+        byte[] encrypted = encrypt(key, CipherSuite.XCHACHA20, testData);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ByteArrayOutputStream reEncrypted = new ByteArrayOutputStream();
+            CryptoPublisher publisher = new CryptoPublisher(
+                    new ByteArrayInputStream(encrypted), key, executor, 1000);
+            CryptoSubscriber subscriber = new CryptoSubscriber(reEncrypted, key, CipherSuite.preferred());
+            publisher.subscribe(subscriber);
+            subscriber.completion().get(30, TimeUnit.SECONDS);
+
+            try (CryptoInputStream in = new CryptoInputStream(
+                    new ByteArrayInputStream(reEncrypted.toByteArray()), key)) {
+                Assert.assertArrayEquals(testData, readAll(in));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void publisherHonorsDemand() throws Exception {
+        if (Build.VERSION.SDK_INT < 30) {
+            return;
+        }
+
+        byte[] key = Native.generateKey();
+        byte[] testData = new byte[100];
+        new SecureRandom().nextBytes(testData);
+        byte[] encrypted = encrypt(key, CipherSuite.XCHACHA20, testData);
+
+        List<ByteBuffer> received = new ArrayList<>();
+        AtomicBoolean completed = new AtomicBoolean(false);
+        Flow.Subscription[] subscription = new Flow.Subscription[1];
+
+        CryptoPublisher publisher = new CryptoPublisher(
+                new ByteArrayInputStream(encrypted), key, Runnable::run, 10);
+        publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                received.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                Assert.fail(throwable.toString());
+            }
+
+            @Override
+            public void onComplete() {
+                completed.set(true);
+            }
+        });
+
+        Assert.assertTrue(received.isEmpty());
+
+        subscription[0].request(2);
+        Assert.assertEquals(2, received.size());
+        Assert.assertFalse(completed.get());
+
+        subscription[0].request(Long.MAX_VALUE);
+        Assert.assertEquals(10, received.size());
+        Assert.assertTrue(completed.get());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : received) {
+            baos.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        Assert.assertArrayEquals(testData, baos.toByteArray());
+    }
+
+    @Test
+    public void secureMemoryRoundTrip() throws Exception {
+        int bs = Native.blockSize();
+        byte[] testData = new byte[bs * 3 + 77];
+        new SecureRandom().nextBytes(testData);
+
+        for (CipherSuite suite : new CipherSuite[] { null, CipherSuite.preferred() }) {
+            byte[] key = Native.generateKey();
+            byte[] digest;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (CryptoOutputStream out = new CryptoOutputStream(baos, key, suite, true, true)) {
+                out.write(testData, 0, 10);
+                out.write(testData[10]);
+                out.write(testData, 11, testData.length - 11);
+                digest = out.flushFinalBlock();
+            }
+
+            // Secure and ordinary streams produce the same format.
+            try (CryptoInputStream in = new CryptoInputStream(new ByteArrayInputStream(baos.toByteArray()), key)) {
+                Assert.assertArrayEquals(testData, readAll(in));
+            }
+
+            try (CryptoInputStream in = new CryptoInputStream(
+                    new ByteArrayInputStream(baos.toByteArray()), key, digest, true)) {
+                Assert.assertEquals(testData[0] & 0xFF, in.read());
+                Assert.assertEquals(bs + 4, in.skip(bs + 4));
+                Assert.assertArrayEquals(
+                        Arrays.copyOfRange(testData, bs + 5, testData.length),
+                        readAll(in));
+                Assert.assertEquals(-1, in.read());
+            }
+        }
+    }
+
+    @Test
+    public void secureMemorySkipsWholeBlocks() throws Exception {
+        int bs = Native.blockSize();
+        byte[] key = Native.generateKey();
+        byte[] testData = new byte[bs * 4];
+        new SecureRandom().nextBytes(testData);
+        byte[] encrypted = encrypt(key, CipherSuite.XCHACHA20, testData);
+
+        try (CryptoInputStream in = new CryptoInputStream(new ByteArrayInputStream(encrypted), key, null, true)) {
+            Assert.assertEquals(3, in.read(new byte[3]));
+            Assert.assertEquals(bs * 2, in.skip(bs * 2));
+            Assert.assertArrayEquals(
+                    Arrays.copyOfRange(testData, bs * 2 + 3, testData.length),
+                    readAll(in));
+        }
+    }
+
+    @Test
+    public void decryptedCacheSharesConcurrentLoads() throws Exception {
+        File dir = createTempDir();
+        try {
+            byte[] key = Native.generateKey();
+            byte[] testData = new byte[50000];
+            new SecureRandom().nextBytes(testData);
+
+            File file = new File(dir, "thumb");
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                fos.write(encrypt(key, CipherSuite.XCHACHA20, testData));
+            }
+
+            DecryptedCache cache = new DecryptedCache(1 << 20, true);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<byte[]>> results = new ArrayList<>();
+                for (int i = 0; i < 16; i++) {
+                    results.add(executor.submit(() -> cache.get(file, "k1", key)));
+                }
+                for (Future<byte[]> result : results) {
+                    Assert.assertArrayEquals(testData, result.get(30, TimeUnit.SECONDS));
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            Assert.assertEquals(1, cache.loadCount());
+            Assert.assertEquals(testData.length, cache.weight());
+
+            // Callers get copies, so scribbling on one cannot corrupt the cache.
+            byte[] copy = cache.get(file, "k1", key);
+            Arrays.fill(copy, (byte) 0);
+            Assert.assertArrayEquals(testData, cache.get(file, "k1", key));
+            Assert.assertEquals(1, cache.loadCount());
+
+            cache.invalidate(file);
+            Assert.assertEquals(0, cache.weight());
+            Assert.assertArrayEquals(testData, cache.get(file, "k1", key));
+            Assert.assertEquals(2, cache.loadCount());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void decryptedCacheRetriesFailedLoads() throws Exception {
+        File dir = createTempDir();
+        try {
+            byte[] key = Native.generateKey();
+            File file = new File(dir, "late");
+            DecryptedCache cache = new DecryptedCache(1 << 20, false);
+            try {
+                cache.get(file, "k", key);
+                Assert.fail("Expected the missing file to fail");
+            } catch (IOException expected) {
+                // ok
+            }
+
+            byte[] testData = new byte[1000];
+            new SecureRandom().nextBytes(testData);
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                fos.write(encrypt(key, CipherSuite.XCHACHA20, testData));
+            }
+
+            Assert.assertArrayEquals(testData, cache.get(file, "k", key));
+            Assert.assertEquals(2, cache.loadCount());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void decryptedCacheWipingDoesNotReachConcurrentReaders() throws Exception {
+        File dir = createTempDir();
+        try {
+            byte[] key = Native.generateKey();
+            byte[][] contents = new byte[4][];
+            File[] files = new File[contents.length];
+            for (int i = 0; i < files.length; i++) {
+                contents[i] = new byte[20000];
+                new SecureRandom().nextBytes(contents[i]);
+                files[i] = new File(dir, "f" + i);
+                try (FileOutputStream fos = new FileOutputStream(files[i])) {
+                    fos.write(encrypt(key, CipherSuite.XCHACHA20, contents[i]));
+                }
+            }
+
+            // Room for one file, so every load evicts and wipes another,
+            // while invalidate() and clear() wipe whatever is left.
+            DecryptedCache cache = new DecryptedCache(20000, true);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    final int thread = t;
+                    results.add(executor.submit(() -> {
+                        for (int i = 0; i < 200; i++) {
+                            int f = (thread + i) % files.length;
+                            Assert.assertArrayEquals(contents[f], cache.get(files[f], "k", key));
+                            if (i % 7 == 0) {
+                                cache.invalidate(files[(f + 1) % files.length]);
+                            } else if (i % 11 == 0) {
+                                cache.clear();
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> result : results) {
+                    result.get(60, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdown();
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void decryptedCacheEvictsLeastRecentlyUsed() throws Exception {
+        File dir = createTempDir();
+        try {
+            byte[] key = Native.generateKey();
+            File[] files = new File[3];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = new File(dir, "f" + i);
+                try (FileOutputStream fos = new FileOutputStream(files[i])) {
+                    fos.write(encrypt(key, CipherSuite.XCHACHA20, new byte[1000]));
+                }
+            }
+
+            DecryptedCache cache = new DecryptedCache(2000, false);
+            cache.get(files[0], "k", key);
+            cache.get(files[1], "k", key);
+            cache.get(files[0], "k", key); // files[1] is now the eldest
+            cache.get(files[2], "k", key);
+
+            Assert.assertEquals(1, cache.evictionCount());
+            Assert.assertEquals(2000, cache.weight());
+
+            cache.get(files[0], "k", key);
+            Assert.assertEquals(3, cache.loadCount());
+            cache.get(files[1], "k", key);
+            Assert.assertEquals(4, cache.loadCount());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void cryptoBytesMatchesStreamFormat() throws Exception {
+        byte[] key = Native.generateKey();
+        byte[] testData = new byte[Native.blockSize() + 100];
+        new SecureRandom().nextBytes(testData);
+
+        byte[] encrypted = CryptoBytes.encrypt(key, testData);
+        Assert.assertEquals(testData.length + CryptoBytes.OVERHEAD, encrypted.length);
+        Assert.assertArrayEquals(testData, CryptoBytes.decrypt(key, encrypted));
+
+        try (CryptoInputStream in = new CryptoInputStream(new ByteArrayInputStream(encrypted), key)) {
+            Assert.assertArrayEquals(testData, readAll(in));
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (CryptoOutputStream out = new CryptoOutputStream(baos, key)) {
+            out.write(testData);
+        }
+        Assert.assertArrayEquals(testData, CryptoBytes.decrypt(key, baos.toByteArray()));
+
+        Assert.assertArrayEquals(new byte[0], CryptoBytes.decrypt(key, CryptoBytes.encrypt(key, new byte[0])));
+    }
+
+    @Test
+    public void cryptoBytesIntoCallerArrays() {
+        byte[] key = Native.generateKey();
+        byte[] testData = "Hello, World!".getBytes();
+
+        byte[] encrypted = new byte[5 + testData.length + CryptoBytes.OVERHEAD];
+        Assert.assertEquals(
+                testData.length + CryptoBytes.OVERHEAD,
+                CryptoBytes.encrypt(key, testData, 0, testData.length, encrypted, 5));
+
+        byte[] decrypted = new byte[3 + testData.length];
+        Assert.assertEquals(
+                testData.length,
+                CryptoBytes.decrypt(key, encrypted, 5, encrypted.length - 5, decrypted, 3));
+        Assert.assertArrayEquals(testData, Arrays.copyOfRange(decrypted, 3, decrypted.length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cryptoBytesRejectsShortOutput() {
+        byte[] key = Native.generateKey();
+        CryptoBytes.encrypt(key, new byte[10], 0, 10, new byte[10 + CryptoBytes.OVERHEAD - 1], 0);
+    }
+
+    @Test
+    public void transferDecryptsRangeBetweenDescriptors() throws Exception {
+        File dir = createTempDir();
+        try {
+            byte[] key = Native.generateKey();
+            byte[] testData = new byte[600 * 1024 + 17];
+            new SecureRandom().nextBytes(testData);
+
+            for (CipherSuite suite : new CipherSuite[] { null, CipherSuite.XCHACHA20 }) {
+                File encrypted = new File(dir, "encrypted");
+                try (CryptoOutputStream out = new CryptoOutputStream(new FileOutputStream(encrypted), key, suite, false)) {
+                    out.write(testData);
+                }
+
+                File range = new File(dir, "range");
+                try (FileInputStream in = new FileInputStream(encrypted);
+                     FileOutputStream out = new FileOutputStream(range)) {
+                    Assert.assertEquals(300000, CryptoTransfer.decrypt(in.getFD(), out.getFD(), key, 1001, 300000));
+                }
+                Assert.assertArrayEquals(Arrays.copyOfRange(testData, 1001, 301001), readFile(range));
+
+                File tail = new File(dir, "tail");
+                try (FileInputStream in = new FileInputStream(encrypted);
+                     FileOutputStream out = new FileOutputStream(tail)) {
+                    Assert.assertEquals(
+                            testData.length - 70,
+                            CryptoTransfer.decrypt(in.getFD(), out.getFD(), key, 70, Long.MAX_VALUE));
+                }
+                Assert.assertArrayEquals(Arrays.copyOfRange(testData, 70, testData.length), readFile(tail));
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void transferEncryptsBetweenDescriptors() throws Exception {
+        File dir = createTempDir();
+        try {
+            byte[] key = Native.generateKey();
+            byte[] testData = new byte[300 * 1024 + 5];
+            new SecureRandom().nextBytes(testData);
+
+            File plain = new File(dir, "plain");
+            try (FileOutputStream fos = new FileOutputStream(plain)) {
+                fos.write(testData);
+            }
+
+            File encrypted = new File(dir, "encrypted");
+            try (FileInputStream in = new FileInputStream(plain);
+                 FileOutputStream out = new FileOutputStream(encrypted)) {
+                Assert.assertEquals(
+                        testData.length - 5,
+                        CryptoTransfer.encrypt(in.getFD(), out.getFD(), key, 5, Long.MAX_VALUE));
+            }
+
+            try (CryptoInputStream in = new CryptoInputStream(new FileInputStream(encrypted), key)) {
+                Assert.assertArrayEquals(Arrays.copyOfRange(testData, 5, testData.length), readAll(in));
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void chunkStoreDeduplicatesShiftedContent() throws Exception {
+        File dir = createTempDir();
+        try (ChunkStore store = new ChunkStore(dir, Native.generateKey())) {
+            byte[] testData = new byte[2 * 1024 * 1024];
+            new SecureRandom().nextBytes(testData);
+
+            Assert.assertEquals(testData.length, store.put("original", new ByteArrayInputStream(testData)));
+            Assert.assertEquals(0, store.put("copy", new ByteArrayInputStream(testData)));
+
+            // An edit near the start shifts every later byte, but content-
+            // defined boundaries resynchronize after the first chunk or two.
+            byte[] edited = new byte[testData.length + 100];
+            System.arraycopy(testData, 0, edited, 0, 1000);
+            System.arraycopy(testData, 1000, edited, 1100, testData.length - 1000);
+            long written = store.put("edited", new ByteArrayInputStream(edited));
+            Assert.assertTrue("wrote " + written, written < 3 * ContentChunker.MAX_SIZE);
+
+            Assert.assertEquals(edited.length, store.length("edited"));
+            try (InputStream in = store.open("edited")) {
+                Assert.assertArrayEquals(edited, readAll(in));
+            }
+            try (InputStream in = store.open("copy")) {
+                Assert.assertEquals(1_500_000, in.skip(1_500_000));
+                Assert.assertArrayEquals(
+                        Arrays.copyOfRange(testData, 1_500_000, testData.length),
+                        readAll(in));
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void chunkStoreDetectsTamperingAndCollectsGarbage() throws Exception {
+        File dir = createTempDir();
+        try (ChunkStore store = new ChunkStore(dir, Native.generateKey())) {
+            byte[] a = new byte[200 * 1024];
+            byte[] b = new byte[200 * 1024];
+            new SecureRandom().nextBytes(a);
+            new SecureRandom().nextBytes(b);
+            store.put("a", new ByteArrayInputStream(a));
+            store.put("b", new ByteArrayInputStream(b));
+
+            Assert.assertTrue(store.delete("b"));
+            Assert.assertFalse(store.contains("b"));
+            Assert.assertTrue(store.collectGarbage() > 0);
+            Assert.assertEquals(0, store.collectGarbage());
+
+            try (InputStream in = store.open("a")) {
+                Assert.assertArrayEquals(a, readAll(in));
+            }
+
+            // Flip a bit in the last byte of every remaining chunk.
+            for (File prefix : new File(dir, "chunks").listFiles()) {
+                for (File chunk : prefix.listFiles()) {
+                    try (RandomAccessFile raf = new RandomAccessFile(chunk, "rw")) {
+                        raf.seek(raf.length() - 1);
+                        int last = raf.read();
+                        raf.seek(raf.length() - 1);
+                        raf.write(last ^ 1);
+                    }
+                }
+            }
+
+            try (InputStream in = store.open("a")) {
+                readAll(in);
+                Assert.fail("Expected tampering to be detected");
+            } catch (IOException expected) {
+                // ok
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void followModeDecryptsFlushedBlocks() throws Exception {
+        File dir = createTempDir();
+        try {
+            byte[] key = Native.generateKey();
+            byte[] testData = new byte[300];
+            new SecureRandom().nextBytes(testData);
+            File file = new File(dir, "recording");
+
+            CryptoOutputStream out = new CryptoOutputStream(new FileOutputStream(file), key);
+            out.write(testData, 0, 100);
+            out.flush();
+            Assert.assertEquals(Native.NONCE_SIZE + 64, file.length());
+
+            try (CryptoInputStream in = new CryptoInputStream(new FileInputStream(file), key, null, false, 10)) {
+                byte[] buffer = new byte[testData.length];
+                Assert.assertEquals(64, in.read(buffer, 0, buffer.length));
+
+                // The reader resumes mid-block, from the 36 bytes it held back.
+                out.write(testData, 100, 200);
+                out.flush();
+                Assert.assertEquals(192, in.read(buffer, 64, buffer.length - 64));
+
+                out.close();
+                in.stopFollowing();
+                Assert.assertEquals(44, in.read(buffer, 256, buffer.length - 256));
+                Assert.assertEquals(-1, in.read());
+                Assert.assertArrayEquals(testData, buffer);
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void followModeTrailsConcurrentWriter() throws Exception {
+        File dir = createTempDir();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            byte[] key = Native.generateKey();
+            byte[] testData = new byte[50_000];
+            new SecureRandom().nextBytes(testData);
+            File file = new File(dir, "recording");
+            Assert.assertTrue(file.createNewFile());
+
+            // The reader starts before the writer has written even the nonce.
+            AtomicReference<CryptoInputStream> reader = new AtomicReference<>();
+            Future<byte[]> result = executor.submit(() -> {
+                try (CryptoInputStream in = new CryptoInputStream(new FileInputStream(file), key, null, true, 5)) {
+                    reader.set(in);
+                    return readAll(in);
+                }
+            });
+
+            try (CryptoOutputStream out = new CryptoOutputStream(new FileOutputStream(file), key)) {
+                for (int i = 0; i < testData.length; i += 777) {
+                    out.write(testData, i, Math.min(777, testData.length - i));
+                    out.flush();
+                    Thread.sleep(1);
+                }
+            }
+
+            while (reader.get() == null) {
+                Thread.sleep(5);
+            }
+            reader.get().stopFollowing();
+            Assert.assertArrayEquals(testData, result.get(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+            deleteRecursively(dir);
+        }
+    }
+
+    private static byte[] encrypt(byte[] key, CipherSuite suite, byte[] plaintext) throws IOException {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            try (CryptoOutputStream out = new CryptoOutputStream(baos, key, suite)) {
+                out.write(plaintext);
+            }
+            return baos.toByteArray();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            byte[] buffer = new byte[1000];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                baos.write(buffer, 0, n);
+            }
+            return baos.toByteArray();
+        }
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("cryptostream", "");
+        Assert.assertTrue(dir.delete());
+        Assert.assertTrue(dir.mkdir());
+        return dir;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file);
+             ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                baos.write(buffer, 0, n);
+            }
+            return baos.toByteArray();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
 }
@@ -19,15 +19,39 @@
 
 #include "sodium.h"
 
+#include <cerrno>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+
+#include <fcntl.h>
+#include <sys/socket.h>
+#include <unistd.h>
+
 namespace {
 
+// The generichash state is declared with 64-byte alignment, which Java
+// arrays do not guarantee; it is round-tripped through an aligned local
+// rather than being used in place.
+bool update_hash(unsigned char* stateBytes, const unsigned char* data, unsigned long long length)
+{
+    crypto_generichash_state state;
+    memcpy(&state, stateBytes, sizeof(state));
+    int rc = crypto_generichash_update(&state, data, length);
+    memcpy(stateBytes, &state, sizeof(state));
+    sodium_memzero(&state, sizeof(state));
+    return rc == 0;
+}
+
 void xor_block(
         JNIEnv* env,
         jbyteArray key,
         jbyteArray nonce,
         jlong counter,
         jbyteArray message,
-        jlong length)
+        jlong length,
+        jbyteArray hashState = nullptr,
+        bool hashBeforeXor = false)
 {
     CHECK_NOT_NULL(key, "key");
     CHECK_NOT_NULL(nonce, "nonce");
@@ -36,17 +60,26 @@ void xor_block(
     CHECK(env->GetArrayLength(nonce) == crypto_stream_xchacha20_NONCEBYTES, "Invalid nonce");
     CHECK(length <= env->GetArrayLength(message), "Length is longer than the message");
     CHECK(length >= 0, "Length cannot be negative");
+    CHECK(hashState == nullptr || env->GetArrayLength(hashState) == sizeof(crypto_generichash_state), "Invalid hash state");
     
     auto keyBytes = ByteArray::Create(env, key);
     auto nonceBytes = ByteArray::Create(env, nonce);
     auto msgBytes = ByteArray::Create(env, message);
+    auto stateBytes = hashState != nullptr ? ByteArray::Create(env, hashState) : std::nullopt;
 
-    if (!keyBytes || !nonceBytes || !msgBytes) {
-        ReleaseAll(keyBytes, nonceBytes, msgBytes);
+    if (!keyBytes || !nonceBytes || !msgBytes || (hashState != nullptr && !stateBytes)) {
+        ReleaseAll(keyBytes, nonceBytes, msgBytes, stateBytes);
         THROW(NullPointerException, "Failed to get byte array elements");
         return;
     }
 
+    // Hashing and xor-ing the same block back to back keeps it in cache,
+    // which is the entire point of doing both in one call.
+    bool hashed = true;
+    if (stateBytes && hashBeforeXor) {
+        hashed = update_hash(*stateBytes, *msgBytes, static_cast<unsigned long long>(length));
+    }
+
     crypto_stream_xchacha20_xor_ic(
             *msgBytes,
             *msgBytes,
@@ -54,61 +87,522 @@ void xor_block(
             *nonceBytes,
             static_cast<uint64_t>(counter),
             *keyBytes);
+
+    if (stateBytes && !hashBeforeXor) {
+        hashed = update_hash(*stateBytes, *msgBytes, static_cast<unsigned long long>(length));
+    }
+
+    if (!hashed) {
+        ReleaseAll(keyBytes, nonceBytes, msgBytes, stateBytes);
+        THROW(IllegalStateException, "Failed to update hash");
+    }
 }
 
-} // namespace
+// AES-256-GCM segments use the segment index as the nonce, which is safe
+// because every stream encrypts under its own derived subkey.  The single
+// byte of associated data marks the final segment, so that truncating a
+// stream at a segment boundary is detected.
+void segment_nonce(unsigned char nonce[crypto_aead_aes256gcm_NPUBBYTES], jlong index)
+{
+    memset(nonce, 0, crypto_aead_aes256gcm_NPUBBYTES);
+    auto value = static_cast<uint64_t>(index);
+    for (int i = 0; i < 8; ++i) {
+        nonce[crypto_aead_aes256gcm_NPUBBYTES - 1 - i] = static_cast<unsigned char>(value >> (8 * i));
+    }
+}
 
-extern "C" {
+void aes_seal(
+        unsigned char* ciphertext,
+        unsigned char* tag,
+        const unsigned char* plaintext,
+        unsigned long long length,
+        jlong index,
+        jboolean last,
+        const unsigned char* key)
+{
+    unsigned char nonce[crypto_aead_aes256gcm_NPUBBYTES];
+    segment_nonce(nonce, index);
+    const unsigned char ad = last ? 1 : 0;
 
-JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* /* reserved */)
+    crypto_aead_aes256gcm_encrypt_detached(
+            ciphertext,
+            tag,
+            nullptr,
+            plaintext,
+            length,
+            &ad,
+            1,
+            nullptr,
+            nonce,
+            key);
+}
+
+bool aes_open(
+        unsigned char* plaintext,
+        const unsigned char* ciphertext,
+        unsigned long long length,
+        const unsigned char* tag,
+        jlong index,
+        jboolean last,
+        const unsigned char* key)
 {
-    JNIEnv* env;
-    if (vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK)
-    {
-        return -1;
+    unsigned char nonce[crypto_aead_aes256gcm_NPUBBYTES];
+    segment_nonce(nonce, index);
+    const unsigned char ad = last ? 1 : 0;
+
+    return crypto_aead_aes256gcm_decrypt_detached(
+            plaintext,
+            nullptr,
+            ciphertext,
+            length,
+            tag,
+            &ad,
+            1,
+            nonce,
+            key) == 0;
+}
+
+void seal_segment(
+        JNIEnv* env,
+        jbyteArray key,
+        jlong index,
+        jboolean last,
+        jbyteArray buffer,
+        jint length,
+        jbyteArray hashState)
+{
+    CHECK_NOT_NULL(key, "key");
+    CHECK_NOT_NULL(buffer, "buffer");
+    CHECK(env->GetArrayLength(key) == crypto_aead_aes256gcm_KEYBYTES, "Invalid key");
+    CHECK(length >= 0, "Length cannot be negative");
+    CHECK(static_cast<jlong>(length) + crypto_aead_aes256gcm_ABYTES <= env->GetArrayLength(buffer), "Buffer has no room for the tag");
+    CHECK(hashState == nullptr || env->GetArrayLength(hashState) == sizeof(crypto_generichash_state), "Invalid hash state");
+    REQUIRE(crypto_aead_aes256gcm_is_available(), "AES-256-GCM is not available on this device");
+
+    auto keyBytes = ByteArray::Create(env, key);
+    auto bufBytes = ByteArray::Create(env, buffer);
+    auto stateBytes = hashState != nullptr ? ByteArray::Create(env, hashState) : std::nullopt;
+
+    if (!keyBytes || !bufBytes || (hashState != nullptr && !stateBytes)) {
+        ReleaseAll(keyBytes, bufBytes, stateBytes);
+        THROW(NullPointerException, "Failed to get byte array elements");
+        return;
     }
 
-    if (sodium_init() < 0)
-    {
-        return -1;
+    if (stateBytes && !update_hash(*stateBytes, *bufBytes, static_cast<unsigned long long>(length))) {
+        ReleaseAll(keyBytes, bufBytes, stateBytes);
+        THROW(IllegalStateException, "Failed to update hash");
+        return;
     }
 
-    cacheExceptionClasses(env);
+    unsigned char* data = *bufBytes;
+    aes_seal(data, data + length, data, static_cast<unsigned long long>(length), index, last, *keyBytes);
+}
 
-    return JNI_VERSION_1_6;
+void open_segment(
+        JNIEnv* env,
+        jbyteArray key,
+        jlong index,
+        jboolean last,
+        jbyteArray buffer,
+        jint length,
+        jbyteArray hashState,
+        bool* verified)
+{
+    CHECK_NOT_NULL(key, "key");
+    CHECK_NOT_NULL(buffer, "buffer");
+    CHECK(env->GetArrayLength(key) == crypto_aead_aes256gcm_KEYBYTES, "Invalid key");
+    CHECK(length >= static_cast<jint>(crypto_aead_aes256gcm_ABYTES), "Segment is shorter than its tag");
+    CHECK(length <= env->GetArrayLength(buffer), "Length is longer than the buffer");
+    CHECK(hashState == nullptr || env->GetArrayLength(hashState) == sizeof(crypto_generichash_state), "Invalid hash state");
+    REQUIRE(crypto_aead_aes256gcm_is_available(), "AES-256-GCM is not available on this device");
+
+    auto keyBytes = ByteArray::Create(env, key);
+    auto bufBytes = ByteArray::Create(env, buffer);
+    auto stateBytes = hashState != nullptr ? ByteArray::Create(env, hashState) : std::nullopt;
+
+    if (!keyBytes || !bufBytes || (hashState != nullptr && !stateBytes)) {
+        ReleaseAll(keyBytes, bufBytes, stateBytes);
+        THROW(NullPointerException, "Failed to get byte array elements");
+        return;
+    }
+
+    unsigned char* data = *bufBytes;
+    auto plaintextLength = static_cast<unsigned long long>(length - crypto_aead_aes256gcm_ABYTES);
+    if (!aes_open(data, data, plaintextLength, data + plaintextLength, index, last, *keyBytes)) {
+        sodium_memzero(data, static_cast<size_t>(length));
+        return;
+    }
+
+    if (stateBytes && !update_hash(*stateBytes, data, plaintextLength)) {
+        ReleaseAll(keyBytes, bufBytes, stateBytes);
+        THROW(IllegalStateException, "Failed to update hash");
+        return;
+    }
+
+    *verified = true;
 }
 
-JNIEXPORT void JNICALL JNI_OnUnload(JavaVM* vm, void* /* reserved */)
+// Returns the address of a direct buffer holding at least required bytes,
+// or null with an exception pending.
+unsigned char* direct_address(JNIEnv* env, jobject buffer, jlong required)
 {
-    JNIEnv* env;
-    if (vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK)
-    {
+    if (buffer == nullptr) {
+        THROW(NullPointerException, "buffer");
+        return nullptr;
+    }
+
+    auto* address = static_cast<unsigned char*>(env->GetDirectBufferAddress(buffer));
+    if (address == nullptr) {
+        THROW(IllegalArgumentException, "Not a direct buffer");
+        return nullptr;
+    }
+
+    if (env->GetDirectBufferCapacity(buffer) < required) {
+        THROW(IllegalArgumentException, "Direct buffer is too small");
+        return nullptr;
+    }
+
+    return address;
+}
+
+// Like xor_block, but the key and plaintext are in direct buffers and the
+// ciphertext is in a Java array, so that plaintext is never written to the
+// Java heap.  The plaintext is always what gets hashed.
+void xor_direct(
+        JNIEnv* env,
+        jobject key,
+        jbyteArray nonce,
+        jlong counter,
+        jobject plaintext,
+        jbyteArray ciphertext,
+        jint length,
+        jbyteArray hashState,
+        bool encrypting)
+{
+    CHECK_NOT_NULL(nonce, "nonce");
+    CHECK_NOT_NULL(ciphertext, "ciphertext");
+    CHECK(env->GetArrayLength(nonce) == crypto_stream_xchacha20_NONCEBYTES, "Invalid nonce");
+    CHECK(length >= 0, "Length cannot be negative");
+    CHECK(length <= env->GetArrayLength(ciphertext), "Length is longer than the ciphertext");
+    CHECK(hashState == nullptr || env->GetArrayLength(hashState) == sizeof(crypto_generichash_state), "Invalid hash state");
+
+    unsigned char* keyBytes = direct_address(env, key, crypto_stream_xchacha20_KEYBYTES);
+    if (keyBytes == nullptr) {
         return;
     }
 
-    freeExceptionClasses(env);
+    unsigned char* plainBytes = direct_address(env, plaintext, length);
+    if (plainBytes == nullptr) {
+        return;
+    }
+
+    auto nonceBytes = ByteArray::Create(env, nonce);
+    auto cipherBytes = ByteArray::Create(env, ciphertext);
+    auto stateBytes = hashState != nullptr ? ByteArray::Create(env, hashState) : std::nullopt;
+
+    if (!nonceBytes || !cipherBytes || (hashState != nullptr && !stateBytes)) {
+        ReleaseAll(nonceBytes, cipherBytes, stateBytes);
+        THROW(NullPointerException, "Failed to get byte array elements");
+        return;
+    }
+
+    auto len = static_cast<unsigned long long>(length);
+    bool hashed = true;
+    if (encrypting) {
+        if (stateBytes) {
+            hashed = update_hash(*stateBytes, plainBytes, len);
+        }
+        crypto_stream_xchacha20_xor_ic(*cipherBytes, plainBytes, len, *nonceBytes, static_cast<uint64_t>(counter), keyBytes);
+    } else {
+        crypto_stream_xchacha20_xor_ic(plainBytes, *cipherBytes, len, *nonceBytes, static_cast<uint64_t>(counter), keyBytes);
+        if (stateBytes) {
+            hashed = update_hash(*stateBytes, plainBytes, len);
+        }
+    }
+
+    if (!hashed) {
+        ReleaseAll(nonceBytes, cipherBytes, stateBytes);
+        THROW(IllegalStateException, "Failed to update hash");
+    }
+}
+
+// Encrypts or decrypts a whole nonce-prefixed message in one call: the
+// same format as a headerless stream, counter starting at zero.  When
+// encrypting, a fresh nonce is written to the front of the output;
+// when decrypting, it is read from the front of the input.
+void xor_message(
+        JNIEnv* env,
+        jbyteArray key,
+        jbyteArray input,
+        jint inputOffset,
+        jint inputLength,
+        jbyteArray output,
+        jint outputOffset,
+        bool encrypting)
+{
+    CHECK_NOT_NULL(key, "key");
+    CHECK_NOT_NULL(input, "input");
+    CHECK_NOT_NULL(output, "output");
+    CHECK(env->GetArrayLength(key) == crypto_stream_xchacha20_KEYBYTES, "Invalid key");
+    CHECK(inputOffset >= 0 && inputLength >= 0, "Invalid input range");
+    CHECK(static_cast<jlong>(inputOffset) + inputLength <= env->GetArrayLength(input), "Invalid input range");
+    CHECK(encrypting || inputLength >= static_cast<jint>(crypto_stream_xchacha20_NONCEBYTES), "Input is shorter than the nonce");
+
+    jlong outputLength = encrypting
+            ? static_cast<jlong>(inputLength) + crypto_stream_xchacha20_NONCEBYTES
+            : static_cast<jlong>(inputLength) - crypto_stream_xchacha20_NONCEBYTES;
+    CHECK(outputOffset >= 0, "Invalid output offset");
+    CHECK(outputOffset + outputLength <= env->GetArrayLength(output), "Output is too small");
+
+    unsigned char nonce[crypto_stream_xchacha20_NONCEBYTES];
+    if (encrypting) {
+        randombytes_buf(nonce, sizeof(nonce));
+    } else {
+        env->GetByteArrayRegion(input, inputOffset, sizeof(nonce), reinterpret_cast<jbyte*>(nonce));
+    }
+
+    auto keyBytes = ByteArray::Create(env, key);
+    auto inBytes = ByteArray::Create(env, input);
+    auto outBytes = ByteArray::Create(env, output);
+
+    if (!keyBytes || !inBytes || !outBytes) {
+        ReleaseAll(keyBytes, inBytes, outBytes);
+        THROW(NullPointerException, "Failed to get byte array elements");
+        return;
+    }
+
+    auto messageLength = static_cast<unsigned long long>(encrypting ? inputLength : outputLength);
+    unsigned char* in = *inBytes + inputOffset;
+    unsigned char* out = *outBytes + outputOffset;
+    if (encrypting) {
+        memcpy(out, nonce, sizeof(nonce));
+        out += sizeof(nonce);
+    } else {
+        in += sizeof(nonce);
+    }
+
+    crypto_stream_xchacha20_xor_ic(
+            out,
+            in,
+            messageLength,
+            nonce,
+            0,
+            *keyBytes);
+}
+
+// Large enough that syscall overhead disappears, and a multiple of the
+// 64-byte keystream block so that the counter stays aligned from one chunk
+// to the next.
+constexpr size_t kTransferChunkSize = 256 * 1024;
+
+// Descriptors arrive as plain ints, taken from ParcelFileDescriptor on
+// the Java side; java.io.FileDescriptor's field is not public API.
+bool check_fd(JNIEnv* env, jint fd)
+{
+    if (fd < 0) {
+        THROW(IOException, "File descriptor is not valid");
+        return false;
+    }
+    return true;
+}
+
+void throw_errno(JNIEnv* env, const char* operation)
+{
+    char message[128];
+    snprintf(message, sizeof(message), "%s failed: %s", operation, strerror(errno));
+    THROW(IOException, message);
 }
 
-JNIEXPORT jint JNICALL
-Java_com_bendb_cryptostream_Native_blockSize(JNIEnv* /* env */, jclass /* klass */)
+// Reads until count bytes have been read or the end of the file is
+// reached.  Returns the number of bytes read, or -1 with errno set.
+ssize_t pread_fully(int fd, unsigned char* buffer, size_t count, off64_t position)
+{
+    size_t total = 0;
+    while (total < count) {
+        ssize_t n = pread64(fd, buffer + total, count - total, position + static_cast<off64_t>(total));
+        if (n < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            return -1;
+        }
+        if (n == 0) {
+            break;
+        }
+        total += static_cast<size_t>(n);
+    }
+    return static_cast<ssize_t>(total);
+}
+
+// Sockets are written with MSG_NOSIGNAL, so that a client hanging up shows
+// up as EPIPE rather than killing the process with SIGPIPE.  isSocket
+// starts out true and is cleared the first time send() says otherwise.
+bool write_fully(int fd, const unsigned char* buffer, size_t count, bool* isSocket)
+{
+    size_t total = 0;
+    while (total < count) {
+        ssize_t n;
+        if (*isSocket) {
+            n = send(fd, buffer + total, count - total, MSG_NOSIGNAL);
+            if (n < 0 && errno == ENOTSOCK) {
+                *isSocket = false;
+                continue;
+            }
+        } else {
+            n = write(fd, buffer + total, count - total);
+        }
+
+        if (n < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            return false;
+        }
+        total += static_cast<size_t>(n);
+    }
+    return true;
+}
+
+// Everything the transfer holds that must be wiped, wiped on every exit.
+struct TransferState {
+    unsigned char key[crypto_stream_xchacha20_KEYBYTES];
+    unsigned char nonce[crypto_stream_xchacha20_NONCEBYTES];
+    unsigned char* buffer = nullptr;
+
+    ~TransferState()
+    {
+        sodium_memzero(key, sizeof(key));
+        sodium_memzero(nonce, sizeof(nonce));
+        if (buffer != nullptr) {
+            sodium_memzero(buffer, kTransferChunkSize);
+            free(buffer);
+        }
+    }
+};
+
+// Streams up to length plaintext bytes between two descriptors, entirely
+// in native memory.  The source is read with pread, so it must be a
+// regular file, and its offset is left alone; the destination is written
+// sequentially, so it may be a pipe or socket.
+//
+// Decrypting, the source is an XChaCha20 stream whose ciphertext begins at
+// dataStart, and offset is a plaintext position in it.  Encrypting, the
+// source is plaintext read from offset, and the destination receives a
+// complete headerless stream: the nonce, then the ciphertext.
+jlong transfer_fd(
+        JNIEnv* env,
+        jint src,
+        jint dst,
+        jbyteArray key,
+        jbyteArray nonce,
+        jlong dataStart,
+        jlong offset,
+        jlong length,
+        bool encrypting)
+{
+    if (key == nullptr || nonce == nullptr) {
+        THROW(NullPointerException, key == nullptr ? "key" : "nonce");
+        return -1;
+    }
+
+    if (env->GetArrayLength(key) != crypto_stream_xchacha20_KEYBYTES
+            || env->GetArrayLength(nonce) != crypto_stream_xchacha20_NONCEBYTES) {
+        THROW(IllegalArgumentException, "Invalid key or nonce");
+        return -1;
+    }
+
+    if (dataStart < 0 || offset < 0 || length < 0) {
+        THROW(IllegalArgumentException, "Positions cannot be negative");
+        return -1;
+    }
+
+    if (!check_fd(env, src) || !check_fd(env, dst)) {
+        return -1;
+    }
+
+    TransferState state;
+    env->GetByteArrayRegion(key, 0, sizeof(state.key), reinterpret_cast<jbyte*>(state.key));
+    env->GetByteArrayRegion(nonce, 0, sizeof(state.nonce), reinterpret_cast<jbyte*>(state.nonce));
+
+    state.buffer = static_cast<unsigned char*>(malloc(kTransferChunkSize));
+    if (state.buffer == nullptr) {
+        throwOutOfMemoryError(env);
+        return -1;
+    }
+
+    bool isSocket = true;
+    uint64_t counter;
+    size_t skew;
+    off64_t position;
+    if (encrypting) {
+        if (!write_fully(dst, state.nonce, sizeof(state.nonce), &isSocket)) {
+            throw_errno(env, "write");
+            return -1;
+        }
+        counter = 0;
+        skew = 0;
+        position = offset;
+    } else {
+        // Reading starts at the keystream block containing offset; the
+        // first skew bytes are decrypted only to keep the counter aligned.
+        counter = static_cast<uint64_t>(offset / 64);
+        skew = static_cast<size_t>(offset % 64);
+        position = dataStart + static_cast<off64_t>(counter * 64);
+    }
+
+    uint64_t remaining = static_cast<uint64_t>(length) + skew;
+    jlong transferred = 0;
+    while (remaining > 0) {
+        size_t want = remaining < kTransferChunkSize ? static_cast<size_t>(remaining) : kTransferChunkSize;
+        ssize_t n = pread_fully(src, state.buffer, want, position);
+        if (n < 0) {
+            throw_errno(env, "pread");
+            return -1;
+        }
+
+        auto count = static_cast<size_t>(n);
+        if (count <= skew) {
+            break;
+        }
+
+        crypto_stream_xchacha20_xor_ic(state.buffer, state.buffer, count, state.nonce, counter, state.key);
+
+        if (!write_fully(dst, state.buffer + skew, count - skew, &isSocket)) {
+            throw_errno(env, "write");
+            return -1;
+        }
+
+        transferred += static_cast<jlong>(count - skew);
+        skew = 0;
+        position += static_cast<off64_t>(count);
+        remaining -= count;
+        counter += count / 64;
+
+        if (count < want) {
+            break;
+        }
+    }
+
+    return transferred;
+}
+
+jint blockSize(JNIEnv* /* env */, jclass /* klass */)
 {
     return static_cast<jint>(8192);
 }
 
-JNIEXPORT jint JNICALL
-Java_com_bendb_cryptostream_Native_keySize(JNIEnv* /* env */, jclass /* klass */)
+jint keySize(JNIEnv* /* env */, jclass /* klass */)
 {
     return static_cast<jint>(crypto_stream_xchacha20_KEYBYTES);
 }
 
-JNIEXPORT jint JNICALL
-Java_com_bendb_cryptostream_Native_nonceSize(JNIEnv* /* env */, jclass /* klass */)
+jint nonceSize(JNIEnv* /* env */, jclass /* klass */)
 {
     return static_cast<jint>(crypto_stream_xchacha20_NONCEBYTES);
 }
 
-JNIEXPORT jbyteArray JNICALL
-Java_com_bendb_cryptostream_Native_generateKey(JNIEnv* env, jclass /* klass */)
+jbyteArray generateKey(JNIEnv* env, jclass /* klass */)
 {
     unsigned char key[crypto_stream_xchacha20_KEYBYTES];
     crypto_stream_xchacha20_keygen(key);
@@ -125,26 +619,21 @@ Java_com_bendb_cryptostream_Native_generateKey(JNIEnv* env, jclass /* klass */)
     return result;
 }
 
-JNIEXPORT jbyteArray JNICALL
-Java_com_bendb_cryptostream_Native_generateNonce(JNIEnv* env, jclass /* klass */)
+void generateNonce(JNIEnv* env, jclass /* klass */, jbyteArray nonce)
 {
-    unsigned char nonce[crypto_stream_xchacha20_NONCEBYTES];
-    randombytes(nonce, crypto_stream_xchacha20_NONCEBYTES);
+    CHECK_NOT_NULL(nonce, "nonce");
+    CHECK(env->GetArrayLength(nonce) == crypto_stream_xchacha20_NONCEBYTES, "Invalid nonce");
 
-    jbyteArray result = env->NewByteArray(static_cast<jsize>(crypto_stream_xchacha20_NONCEBYTES));
-    if (result == nullptr) {
-        THROW(NullPointerException, "Failed to create byte array");
-        return nullptr;
+    auto nonceBytes = ByteArray::Create(env, nonce);
+    if (!nonceBytes) {
+        THROW(NullPointerException, "Failed to get byte array elements");
+        return;
     }
-    env->SetByteArrayRegion(result, 0, crypto_stream_xchacha20_NONCEBYTES, reinterpret_cast<jbyte*>(nonce));
 
-    sodium_memzero(nonce, sizeof(nonce));
-
-    return result;
+    randombytes_buf(*nonceBytes, crypto_stream_xchacha20_NONCEBYTES);
 }
 
-JNIEXPORT void JNICALL
-Java_com_bendb_cryptostream_Native_encrypt(
+void encrypt(
         JNIEnv* env,
         jclass /* klass */,
         jbyteArray key,
@@ -156,8 +645,7 @@ Java_com_bendb_cryptostream_Native_encrypt(
     xor_block(env, key, nonce, counter, message, length);
 }
 
-JNIEXPORT void JNICALL
-Java_com_bendb_cryptostream_Native_decrypt(
+void decrypt(
         JNIEnv* env,
         jclass /* klass */,
         jbyteArray key,
@@ -169,4 +657,573 @@ Java_com_bendb_cryptostream_Native_decrypt(
     xor_block(env, key, nonce, counter, message, length);
 }
 
+jint digestSize(JNIEnv* /* env */, jclass /* klass */)
+{
+    return static_cast<jint>(crypto_generichash_BYTES);
+}
+
+jint hashStateSize(JNIEnv* /* env */, jclass /* klass */)
+{
+    return static_cast<jint>(sizeof(crypto_generichash_state));
+}
+
+void hashInit(JNIEnv* env, jclass /* klass */, jbyteArray hashState)
+{
+    CHECK_NOT_NULL(hashState, "hashState");
+    CHECK(env->GetArrayLength(hashState) == sizeof(crypto_generichash_state), "Invalid hash state");
+
+    crypto_generichash_state state;
+    crypto_generichash_init(&state, nullptr, 0, crypto_generichash_BYTES);
+    env->SetByteArrayRegion(hashState, 0, sizeof(state), reinterpret_cast<jbyte*>(&state));
+
+    sodium_memzero(&state, sizeof(state));
+}
+
+void hashFinal(JNIEnv* env, jclass /* klass */, jbyteArray hashState, jbyteArray digest)
+{
+    CHECK_NOT_NULL(hashState, "hashState");
+    CHECK_NOT_NULL(digest, "digest");
+    CHECK(env->GetArrayLength(hashState) == sizeof(crypto_generichash_state), "Invalid hash state");
+    CHECK(env->GetArrayLength(digest) == crypto_generichash_BYTES, "Invalid digest");
+
+    crypto_generichash_state state;
+    env->GetByteArrayRegion(hashState, 0, sizeof(state), reinterpret_cast<jbyte*>(&state));
+
+    unsigned char out[crypto_generichash_BYTES];
+    crypto_generichash_final(&state, out, sizeof(out));
+    env->SetByteArrayRegion(digest, 0, sizeof(out), reinterpret_cast<jbyte*>(out));
+
+    sodium_memzero(&state, sizeof(state));
+    sodium_memzero(out, sizeof(out));
+}
+
+void encryptAndHash(
+        JNIEnv* env,
+        jclass /* klass */,
+        jbyteArray key,
+        jbyteArray nonce,
+        jlong counter,
+        jbyteArray message,
+        jlong length,
+        jbyteArray hashState)
+{
+    CHECK_NOT_NULL(hashState, "hashState");
+    xor_block(env, key, nonce, counter, message, length, hashState, true);
+}
+
+void decryptAndHash(
+        JNIEnv* env,
+        jclass /* klass */,
+        jbyteArray key,
+        jbyteArray nonce,
+        jlong counter,
+        jbyteArray message,
+        jlong length,
+        jbyteArray hashState)
+{
+    CHECK_NOT_NULL(hashState, "hashState");
+    xor_block(env, key, nonce, counter, message, length, hashState, false);
+}
+
+jboolean aes256gcmAvailable(JNIEnv* /* env */, jclass /* klass */)
+{
+    return crypto_aead_aes256gcm_is_available() ? JNI_TRUE : JNI_FALSE;
+}
+
+jint aeadTagSize(JNIEnv* /* env */, jclass /* klass */)
+{
+    return static_cast<jint>(crypto_aead_aes256gcm_ABYTES);
+}
+
+void deriveKey(JNIEnv* env, jclass /* klass */, jbyteArray key, jbyteArray salt, jbyteArray subkey)
+{
+    CHECK_NOT_NULL(key, "key");
+    CHECK_NOT_NULL(salt, "salt");
+    CHECK_NOT_NULL(subkey, "subkey");
+    CHECK(env->GetArrayLength(key) == crypto_stream_xchacha20_KEYBYTES, "Invalid key");
+    CHECK(env->GetArrayLength(salt) == crypto_stream_xchacha20_NONCEBYTES, "Invalid salt");
+    CHECK(env->GetArrayLength(subkey) == crypto_aead_aes256gcm_KEYBYTES, "Invalid subkey");
+
+    unsigned char keyBytes[crypto_stream_xchacha20_KEYBYTES];
+    unsigned char saltBytes[crypto_stream_xchacha20_NONCEBYTES];
+    unsigned char out[crypto_aead_aes256gcm_KEYBYTES];
+    env->GetByteArrayRegion(key, 0, sizeof(keyBytes), reinterpret_cast<jbyte*>(keyBytes));
+    env->GetByteArrayRegion(salt, 0, sizeof(saltBytes), reinterpret_cast<jbyte*>(saltBytes));
+
+    crypto_generichash(out, sizeof(out), saltBytes, sizeof(saltBytes), keyBytes, sizeof(keyBytes));
+    env->SetByteArrayRegion(subkey, 0, sizeof(out), reinterpret_cast<jbyte*>(out));
+
+    sodium_memzero(keyBytes, sizeof(keyBytes));
+    sodium_memzero(out, sizeof(out));
+}
+
+void sealSegment(
+        JNIEnv* env,
+        jclass /* klass */,
+        jbyteArray key,
+        jlong index,
+        jboolean last,
+        jbyteArray buffer,
+        jint length,
+        jbyteArray hashState)
+{
+    seal_segment(env, key, index, last, buffer, length, hashState);
+}
+
+jboolean openSegment(
+        JNIEnv* env,
+        jclass /* klass */,
+        jbyteArray key,
+        jlong index,
+        jboolean last,
+        jbyteArray buffer,
+        jint length,
+        jbyteArray hashState)
+{
+    bool verified = false;
+    open_segment(env, key, index, last, buffer, length, hashState, &verified);
+    return verified ? JNI_TRUE : JNI_FALSE;
+}
+
+jobject secureAllocate(JNIEnv* env, jclass /* klass */, jint size)
+{
+    if (size <= 0) {
+        THROW(IllegalArgumentException, "Size must be positive");
+        return nullptr;
+    }
+
+    void* memory = sodium_malloc(static_cast<size_t>(size));
+    if (memory == nullptr) {
+        throwOutOfMemoryError(env);
+        return nullptr;
+    }
+
+    // sodium_malloc fills new memory with garbage to catch reads of
+    // uninitialized data; callers expect zeros, like a Java array.
+    sodium_memzero(memory, static_cast<size_t>(size));
+
+    jobject buffer = env->NewDirectByteBuffer(memory, size);
+    if (buffer == nullptr) {
+        sodium_free(memory);
+    }
+    return buffer;
+}
+
+void secureFree(JNIEnv* env, jclass /* klass */, jobject buffer)
+{
+    unsigned char* address = direct_address(env, buffer, 0);
+    if (address == nullptr) {
+        return;
+    }
+
+    // Zeroes the memory before unmapping it.
+    sodium_free(address);
+}
+
+void secureZero(JNIEnv* env, jclass /* klass */, jobject buffer, jint offset, jint length)
+{
+    CHECK(offset >= 0, "offset cannot be negative");
+    CHECK(length >= 0, "length cannot be negative");
+
+    unsigned char* address = direct_address(env, buffer, static_cast<jlong>(offset) + length);
+    if (address == nullptr) {
+        return;
+    }
+
+    sodium_memzero(address + offset, static_cast<size_t>(length));
+}
+
+void encryptDirect(
+        JNIEnv* env,
+        jclass /* klass */,
+        jobject key,
+        jbyteArray nonce,
+        jlong counter,
+        jobject plaintext,
+        jbyteArray ciphertext,
+        jint length,
+        jbyteArray hashState)
+{
+    xor_direct(env, key, nonce, counter, plaintext, ciphertext, length, hashState, true);
+}
+
+void decryptDirect(
+        JNIEnv* env,
+        jclass /* klass */,
+        jobject key,
+        jbyteArray nonce,
+        jlong counter,
+        jbyteArray ciphertext,
+        jobject plaintext,
+        jint length,
+        jbyteArray hashState)
+{
+    xor_direct(env, key, nonce, counter, plaintext, ciphertext, length, hashState, false);
+}
+
+void sealSegmentDirect(
+        JNIEnv* env,
+        jclass /* klass */,
+        jobject key,
+        jlong index,
+        jboolean last,
+        jobject plaintext,
+        jint length,
+        jbyteArray segment,
+        jbyteArray hashState)
+{
+    CHECK_NOT_NULL(segment, "segment");
+    CHECK(length >= 0, "Length cannot be negative");
+    CHECK(static_cast<jlong>(length) + crypto_aead_aes256gcm_ABYTES <= env->GetArrayLength(segment), "Segment has no room for the tag");
+    CHECK(hashState == nullptr || env->GetArrayLength(hashState) == sizeof(crypto_generichash_state), "Invalid hash state");
+    REQUIRE(crypto_aead_aes256gcm_is_available(), "AES-256-GCM is not available on this device");
+
+    unsigned char* keyBytes = direct_address(env, key, crypto_aead_aes256gcm_KEYBYTES);
+    if (keyBytes == nullptr) {
+        return;
+    }
+
+    unsigned char* plainBytes = direct_address(env, plaintext, length);
+    if (plainBytes == nullptr) {
+        return;
+    }
+
+    auto segBytes = ByteArray::Create(env, segment);
+    auto stateBytes = hashState != nullptr ? ByteArray::Create(env, hashState) : std::nullopt;
+
+    if (!segBytes || (hashState != nullptr && !stateBytes)) {
+        ReleaseAll(segBytes, stateBytes);
+        THROW(NullPointerException, "Failed to get byte array elements");
+        return;
+    }
+
+    auto len = static_cast<unsigned long long>(length);
+    if (stateBytes && !update_hash(*stateBytes, plainBytes, len)) {
+        ReleaseAll(segBytes, stateBytes);
+        THROW(IllegalStateException, "Failed to update hash");
+        return;
+    }
+
+    unsigned char* data = *segBytes;
+    aes_seal(data, data + length, plainBytes, len, index, last, keyBytes);
+}
+
+jboolean openSegmentDirect(
+        JNIEnv* env,
+        jclass /* klass */,
+        jobject key,
+        jlong index,
+        jboolean last,
+        jbyteArray segment,
+        jint length,
+        jobject plaintext,
+        jbyteArray hashState)
+{
+    if (segment == nullptr) {
+        THROW(NullPointerException, "segment");
+        return JNI_FALSE;
+    }
+
+    if (length < static_cast<jint>(crypto_aead_aes256gcm_ABYTES) || length > env->GetArrayLength(segment)) {
+        THROW(IllegalArgumentException, "Invalid segment length");
+        return JNI_FALSE;
+    }
+
+    if (hashState != nullptr && env->GetArrayLength(hashState) != sizeof(crypto_generichash_state)) {
+        THROW(IllegalArgumentException, "Invalid hash state");
+        return JNI_FALSE;
+    }
+
+    if (!crypto_aead_aes256gcm_is_available()) {
+        THROW(IllegalStateException, "AES-256-GCM is not available on this device");
+        return JNI_FALSE;
+    }
+
+    auto plaintextLength = static_cast<unsigned long long>(length - crypto_aead_aes256gcm_ABYTES);
+
+    unsigned char* keyBytes = direct_address(env, key, crypto_aead_aes256gcm_KEYBYTES);
+    if (keyBytes == nullptr) {
+        return JNI_FALSE;
+    }
+
+    unsigned char* plainBytes = direct_address(env, plaintext, static_cast<jlong>(plaintextLength));
+    if (plainBytes == nullptr) {
+        return JNI_FALSE;
+    }
+
+    auto segBytes = ByteArray::Create(env, segment);
+    auto stateBytes = hashState != nullptr ? ByteArray::Create(env, hashState) : std::nullopt;
+
+    if (!segBytes || (hashState != nullptr && !stateBytes)) {
+        ReleaseAll(segBytes, stateBytes);
+        THROW(NullPointerException, "Failed to get byte array elements");
+        return JNI_FALSE;
+    }
+
+    const unsigned char* data = *segBytes;
+    if (!aes_open(plainBytes, data, plaintextLength, data + plaintextLength, index, last, keyBytes)) {
+        sodium_memzero(plainBytes, static_cast<size_t>(plaintextLength));
+        return JNI_FALSE;
+    }
+
+    if (stateBytes && !update_hash(*stateBytes, plainBytes, plaintextLength)) {
+        ReleaseAll(segBytes, stateBytes);
+        THROW(IllegalStateException, "Failed to update hash");
+        return JNI_FALSE;
+    }
+
+    return JNI_TRUE;
+}
+
+void encryptBytes(
+        JNIEnv* env,
+        jclass /* klass */,
+        jbyteArray key,
+        jbyteArray input,
+        jint inputOffset,
+        jint inputLength,
+        jbyteArray output,
+        jint outputOffset)
+{
+    xor_message(env, key, input, inputOffset, inputLength, output, outputOffset, true);
+}
+
+void decryptBytes(
+        JNIEnv* env,
+        jclass /* klass */,
+        jbyteArray key,
+        jbyteArray input,
+        jint inputOffset,
+        jint inputLength,
+        jbyteArray output,
+        jint outputOffset)
+{
+    xor_message(env, key, input, inputOffset, inputLength, output, outputOffset, false);
+}
+
+void keyedHash(
+        JNIEnv* env,
+        jclass /* klass */,
+        jbyteArray key,
+        jbyteArray input,
+        jint offset,
+        jint length,
+        jbyteArray digest)
+{
+    CHECK_NOT_NULL(key, "key");
+    CHECK_NOT_NULL(input, "input");
+    CHECK_NOT_NULL(digest, "digest");
+    CHECK(env->GetArrayLength(key) == crypto_stream_xchacha20_KEYBYTES, "Invalid key");
+    CHECK(env->GetArrayLength(digest) == crypto_generichash_BYTES, "Invalid digest");
+    CHECK(offset >= 0 && length >= 0, "Invalid input range");
+    CHECK(static_cast<jlong>(offset) + length <= env->GetArrayLength(input), "Invalid input range");
+
+    unsigned char keyBytes[crypto_stream_xchacha20_KEYBYTES];
+    env->GetByteArrayRegion(key, 0, sizeof(keyBytes), reinterpret_cast<jbyte*>(keyBytes));
+
+    auto inBytes = ByteArray::Create(env, input);
+    if (!inBytes) {
+        sodium_memzero(keyBytes, sizeof(keyBytes));
+        THROW(NullPointerException, "Failed to get byte array elements");
+        return;
+    }
+
+    unsigned char out[crypto_generichash_BYTES];
+    int rc = crypto_generichash(out, sizeof(out), *inBytes + offset, static_cast<unsigned long long>(length), keyBytes, sizeof(keyBytes));
+    inBytes->Release();
+    sodium_memzero(keyBytes, sizeof(keyBytes));
+
+    if (rc != 0) {
+        THROW(IllegalStateException, "Failed to compute hash");
+        return;
+    }
+
+    env->SetByteArrayRegion(digest, 0, sizeof(out), reinterpret_cast<jbyte*>(out));
+}
+
+jint readAt(JNIEnv* env, jclass /* klass */, jint fd, jlong position, jbyteArray buffer)
+{
+    if (buffer == nullptr) {
+        THROW(NullPointerException, "buffer");
+        return -1;
+    }
+
+    if (position < 0) {
+        THROW(IllegalArgumentException, "position cannot be negative");
+        return -1;
+    }
+
+    if (!check_fd(env, fd)) {
+        return -1;
+    }
+
+    // Small reads only, for headers; the array is not pinned across the syscall.
+    unsigned char bytes[64];
+    jsize length = env->GetArrayLength(buffer);
+    if (length > static_cast<jsize>(sizeof(bytes))) {
+        THROW(IllegalArgumentException, "buffer is too large");
+        return -1;
+    }
+
+    ssize_t n = pread_fully(fd, bytes, static_cast<size_t>(length), position);
+    if (n < 0) {
+        throw_errno(env, "pread");
+        return -1;
+    }
+
+    env->SetByteArrayRegion(buffer, 0, static_cast<jsize>(n), reinterpret_cast<jbyte*>(bytes));
+    return static_cast<jint>(n);
+}
+
+jlong encryptFd(
+        JNIEnv* env,
+        jclass /* klass */,
+        jint source,
+        jint destination,
+        jbyteArray key,
+        jbyteArray nonce,
+        jlong offset,
+        jlong length)
+{
+    return transfer_fd(env, source, destination, key, nonce, 0, offset, length, true);
+}
+
+jlong decryptFd(
+        JNIEnv* env,
+        jclass /* klass */,
+        jint source,
+        jint destination,
+        jbyteArray key,
+        jbyteArray nonce,
+        jlong dataStart,
+        jlong offset,
+        jlong length)
+{
+    return transfer_fd(env, source, destination, key, nonce, dataStart, offset, length, false);
+}
+
+void syncDirectory(JNIEnv* env, jclass /* klass */, jstring path)
+{
+    CHECK_NOT_NULL(path, "path");
+
+    const char* chars = env->GetStringUTFChars(path, nullptr);
+    if (chars == nullptr) {
+        return;
+    }
+
+    // Renames and new entries only become durable once the directory
+    // itself is synced; Java has no way to open a directory before API 26.
+    int fd;
+    do {
+        fd = open(chars, O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+    } while (fd < 0 && errno == EINTR);
+    env->ReleaseStringUTFChars(path, chars);
+
+    if (fd < 0) {
+        throw_errno(env, "open");
+        return;
+    }
+
+    if (fsync(fd) != 0) {
+        throw_errno(env, "fsync");
+    }
+    close(fd);
+}
+
+// Natives are bound explicitly in JNI_OnLoad rather than resolved by
+// dlsym on first call; this keeps them out of the dynamic symbol table
+// and makes the first call from each new stream as cheap as the rest.
+//
+// None of them are marked @FastNative or @CriticalNative, though both
+// are public SDK from API 34.  The only natives @CriticalNative allows,
+// the size queries and the AES check, run once to fill Native's
+// constants.  The rest do microseconds of crypto per call, which dwarfs
+// what @FastNative saves, and some block on I/O, which it forbids.  The
+// benchmark also compiles Native on a JVM, where the annotations do not
+// exist.
+const JNINativeMethod kNativeMethods[] = {
+    {"blockSize", "()I", reinterpret_cast<void*>(blockSize)},
+    {"keySize", "()I", reinterpret_cast<void*>(keySize)},
+    {"nonceSize", "()I", reinterpret_cast<void*>(nonceSize)},
+    {"generateKey", "()[B", reinterpret_cast<void*>(generateKey)},
+    {"generateNonce", "([B)V", reinterpret_cast<void*>(generateNonce)},
+    {"encrypt", "([B[BJ[BJ)V", reinterpret_cast<void*>(encrypt)},
+    {"decrypt", "([B[BJ[BJ)V", reinterpret_cast<void*>(decrypt)},
+    {"digestSize", "()I", reinterpret_cast<void*>(digestSize)},
+    {"hashStateSize", "()I", reinterpret_cast<void*>(hashStateSize)},
+    {"hashInit", "([B)V", reinterpret_cast<void*>(hashInit)},
+    {"hashFinal", "([B[B)V", reinterpret_cast<void*>(hashFinal)},
+    {"encryptAndHash", "([B[BJ[BJ[B)V", reinterpret_cast<void*>(encryptAndHash)},
+    {"decryptAndHash", "([B[BJ[BJ[B)V", reinterpret_cast<void*>(decryptAndHash)},
+    {"aes256gcmAvailable", "()Z", reinterpret_cast<void*>(aes256gcmAvailable)},
+    {"aeadTagSize", "()I", reinterpret_cast<void*>(aeadTagSize)},
+    {"deriveKey", "([B[B[B)V", reinterpret_cast<void*>(deriveKey)},
+    {"sealSegment", "([BJZ[BI[B)V", reinterpret_cast<void*>(sealSegment)},
+    {"openSegment", "([BJZ[BI[B)Z", reinterpret_cast<void*>(openSegment)},
+    {"secureAllocate", "(I)Ljava/nio/ByteBuffer;", reinterpret_cast<void*>(secureAllocate)},
+    {"secureFree", "(Ljava/nio/ByteBuffer;)V", reinterpret_cast<void*>(secureFree)},
+    {"secureZero", "(Ljava/nio/ByteBuffer;II)V", reinterpret_cast<void*>(secureZero)},
+    {"encryptDirect", "(Ljava/nio/ByteBuffer;[BJLjava/nio/ByteBuffer;[BI[B)V", reinterpret_cast<void*>(encryptDirect)},
+    {"decryptDirect", "(Ljava/nio/ByteBuffer;[BJ[BLjava/nio/ByteBuffer;I[B)V", reinterpret_cast<void*>(decryptDirect)},
+    {"sealSegmentDirect", "(Ljava/nio/ByteBuffer;JZLjava/nio/ByteBuffer;I[B[B)V", reinterpret_cast<void*>(sealSegmentDirect)},
+    {"openSegmentDirect", "(Ljava/nio/ByteBuffer;JZ[BILjava/nio/ByteBuffer;[B)Z", reinterpret_cast<void*>(openSegmentDirect)},
+    {"encryptBytes", "([B[BII[BI)V", reinterpret_cast<void*>(encryptBytes)},
+    {"decryptBytes", "([B[BII[BI)V", reinterpret_cast<void*>(decryptBytes)},
+    {"keyedHash", "([B[BII[B)V", reinterpret_cast<void*>(keyedHash)},
+    {"readAt", "(IJ[B)I", reinterpret_cast<void*>(readAt)},
+    {"encryptFd", "(II[B[BJJ)J", reinterpret_cast<void*>(encryptFd)},
+    {"decryptFd", "(II[B[BJJJ)J", reinterpret_cast<void*>(decryptFd)},
+    {"syncDirectory", "(Ljava/lang/String;)V", reinterpret_cast<void*>(syncDirectory)},
+};
+
+bool registerNatives(JNIEnv* env)
+{
+    jclass klass = env->FindClass("com/bendb/cryptostream/Native");
+    if (klass == nullptr) {
+        return false;
+    }
+
+    jint rc = env->RegisterNatives(klass, kNativeMethods, sizeof(kNativeMethods) / sizeof(kNativeMethods[0]));
+    env->DeleteLocalRef(klass);
+    return rc == JNI_OK;
+}
+
+} // namespace
+
+extern "C" {
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* /* reserved */)
+{
+    JNIEnv* env;
+    if (vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK)
+    {
+        return -1;
+    }
+
+    if (sodium_init() < 0)
+    {
+        return -1;
+    }
+
+    cacheExceptionClasses(env);
+
+    if (!registerNatives(env))
+    {
+        return -1;
+    }
+
+    return JNI_VERSION_1_6;
+}
+
+JNIEXPORT void JNICALL JNI_OnUnload(JavaVM* vm, void* /* reserved */)
+{
+    JNIEnv* env;
+    if (vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK)
+    {
+        return;
+    }
+
+    freeExceptionClasses(env);
+}
+
 }
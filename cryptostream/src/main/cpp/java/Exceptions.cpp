@@ -30,6 +30,7 @@ namespace ExceptionNames {
 constexpr const char* IllegalArgumentException = "java/lang/IllegalArgumentException";
 constexpr const char* IllegalStateException = "java/lang/IllegalStateException";
 constexpr const char* NullPointerException = "java/lang/NullPointerException";
+constexpr const char* IOException = "java/io/IOException";
 
 }
 
@@ -38,6 +39,7 @@ namespace Exceptions {
 jclass IllegalArgumentException;
 jclass IllegalStateException;
 jclass NullPointerException;
+jclass IOException;
 
 }
 
@@ -46,6 +48,7 @@ void cacheExceptionClasses(JNIEnv* env)
     Exceptions::IllegalArgumentException = GetGlobalClassRef(env, ExceptionNames::IllegalArgumentException);
     Exceptions::IllegalStateException = GetGlobalClassRef(env, ExceptionNames::IllegalStateException);
     Exceptions::NullPointerException = GetGlobalClassRef(env, ExceptionNames::NullPointerException);
+    Exceptions::IOException = GetGlobalClassRef(env, ExceptionNames::IOException);
 }
 
 void freeExceptionClasses(JNIEnv* env)
@@ -53,6 +56,7 @@ void freeExceptionClasses(JNIEnv* env)
     env->DeleteGlobalRef(Exceptions::IllegalArgumentException);
     env->DeleteGlobalRef(Exceptions::IllegalStateException);
     env->DeleteGlobalRef(Exceptions::NullPointerException);
+    env->DeleteGlobalRef(Exceptions::IOException);
 }
 
 void throwIllegalArgumentException(JNIEnv* env, const char* message)
@@ -70,6 +74,11 @@ void throwNullPointerException(JNIEnv* env, const char* message)
     env->ThrowNew(Exceptions::NullPointerException, message);
 }
 
+void throwIOException(JNIEnv* env, const char* message)
+{
+    env->ThrowNew(Exceptions::IOException, message);
+}
+
 // OutOfMemoryError is not cached like other exceptions because:
 // 1. It's rarely thrown in practice
 // 2. When memory is exhausted, creating new global refs may fail anyway
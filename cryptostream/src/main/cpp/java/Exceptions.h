@@ -22,6 +22,7 @@ void freeExceptionClasses(JNIEnv *env);
 void throwIllegalStateException(JNIEnv* env, const char* message = "");
 void throwIllegalArgumentException(JNIEnv* env, const char* message = "");
 void throwNullPointerException(JNIEnv* env, const char* message = "");
+void throwIOException(JNIEnv* env, const char* message = "");
 void throwOutOfMemoryError(JNIEnv* env);
 
 #define THROW(type, message) throw##type(env, message)
@@ -0,0 +1,604 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A deduplicating store of encrypted objects.
+ *
+ * <p>Each object is split into content-defined chunks (see
+ * {@link ContentChunker}), and each chunk is stored once, in its own file,
+ * no matter how many objects contain it.  An object itself is just a
+ * manifest listing its chunks, so storing a file that is already present
+ * writes only the manifest, and storing an edited copy writes only the
+ * chunks around the edits.
+ *
+ * <p>Chunks are named by a keyed BLAKE2b hash of their plaintext, so equal
+ * chunks collide only under the same key and names reveal nothing without
+ * it.  Chunks and manifests are encrypted with XChaCha20 in the same
+ * nonce-prefixed format as {@link CryptoBytes}.  The chunk hash doubles as
+ * a MAC: reads recompute it and fail with an {@link IOException} if a
+ * chunk was tampered with, and manifests carry one of their own.
+ *
+ * <p>Objects are named by arbitrary strings, which are hashed before
+ * touching the file system.  {@link #delete(String)} removes only the
+ * manifest; chunks no longer referenced by any object are removed by
+ * {@link #collectGarbage()}.  This class is thread-safe, and streams from
+ * {@link #open(String)} may be read concurrently with writes.  Reading an
+ * object while it is deleted and collected fails with an
+ * {@link IOException}.
+ */
+public final class ChunkStore implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] MANIFEST_MAGIC = {(byte) 0xC5, 'C', 'S', 'M'};
+    private static final byte MANIFEST_VERSION = 1;
+
+    // magic, version, name hash, chunk count, total length.
+    private static final int MANIFEST_HEADER_SIZE = MANIFEST_MAGIC.length + 1 + 32 + 4 + 8;
+
+    private static final String CHUNKS = "chunks";
+    private static final String OBJECTS = "objects";
+
+    private final File chunks;
+    private final File objects;
+
+    // key encrypts chunks and manifests, and is otherwise used only to
+    // derive the rest, one for each purpose: naming chunks, MACing
+    // manifests, naming objects, and keying the chunker.
+    private final byte[] key;
+    private final byte[] idKey;
+    private final byte[] macKey;
+    private final byte[] nameKey;
+    private final long[] gear;
+
+    // Puts and reads hold the read lock; garbage collection holds the
+    // write lock, so it can never delete a chunk that a put has just
+    // decided not to write because it already exists.
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean closed = false;
+
+    /**
+     * Opens the store in {@code directory}, creating it if necessary.
+     * {@code key} is copied, and the copy is wiped on {@link #close()}.
+     */
+    public ChunkStore(@NonNull File directory, @NonNull byte[] key) throws IOException {
+        if (key.length != Native.KEY_SIZE) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+
+        this.chunks = new File(directory, CHUNKS);
+        this.objects = new File(directory, OBJECTS);
+        mkdirs(chunks);
+        mkdirs(objects);
+
+        this.key = key.clone();
+        this.idKey = deriveKey(key, "cryptostream.chunk.id");
+        this.macKey = deriveKey(key, "cryptostream.chunk.mac");
+        this.nameKey = deriveKey(key, "cryptostream.chunk.name");
+        this.gear = deriveGear(key);
+    }
+
+    /**
+     * Stores everything read from {@code in} as the object {@code name},
+     * replacing any existing object of that name.  {@code in} is read to
+     * the end but not closed.
+     *
+     * @return the number of plaintext bytes in chunks that were not
+     *         already stored; zero for a duplicate.
+     */
+    public long put(@NonNull String name, @NonNull InputStream in) throws IOException {
+        byte[] nameHash = hashName(name);
+
+        lock.readLock().lock();
+        try {
+            checkNotClosed();
+
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            DataOutputStream entriesOut = new DataOutputStream(entries);
+            ContentChunker chunker = new ContentChunker(in, gear);
+            byte[] id = new byte[Native.DIGEST_SIZE];
+            byte[] ciphertext = new byte[ContentChunker.MAX_SIZE + CryptoBytes.OVERHEAD];
+            int count = 0;
+            long totalLength = 0;
+            long newBytes = 0;
+            try {
+                int length;
+                while ((length = chunker.next()) != -1) {
+                    byte[] plaintext = chunker.buffer();
+                    Native.keyedHash(idKey, plaintext, 0, length, id);
+
+                    File file = chunkFile(id);
+                    if (!file.exists()) {
+                        int n = CryptoBytes.encrypt(key, plaintext, 0, length, ciphertext, 0);
+                        writeAtomically(file, ciphertext, n);
+                        newBytes += length;
+                    }
+
+                    entriesOut.write(id);
+                    entriesOut.writeInt(length);
+                    count++;
+                    totalLength += length;
+                }
+            } finally {
+                chunker.wipe();
+            }
+
+            ByteArrayOutputStream manifest = new ByteArrayOutputStream(
+                    MANIFEST_HEADER_SIZE + entries.size() + Native.DIGEST_SIZE);
+            DataOutputStream manifestOut = new DataOutputStream(manifest);
+            manifestOut.write(MANIFEST_MAGIC);
+            manifestOut.writeByte(MANIFEST_VERSION);
+            manifestOut.write(nameHash);
+            manifestOut.writeInt(count);
+            manifestOut.writeLong(totalLength);
+            entries.writeTo(manifestOut);
+
+            byte[] body = manifest.toByteArray();
+            Native.keyedHash(macKey, body, 0, body.length, id);
+            manifestOut.write(id);
+
+            byte[] sealed = CryptoBytes.encrypt(key, manifest.toByteArray());
+            writeAtomically(new File(objects, toHex(nameHash)), sealed, sealed.length);
+            return newBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Opens the object {@code name} for reading.  Only the manifest is
+     * read here; each chunk is read, decrypted and verified when the
+     * stream first reaches it, and skipped chunks are never read at all.
+     *
+     * @throws FileNotFoundException if there is no such object.
+     */
+    @NonNull
+    public InputStream open(@NonNull String name) throws IOException {
+        return new ChunkInputStream(readManifest(name));
+    }
+
+    /**
+     * Returns the plaintext length of the object {@code name}.
+     *
+     * @throws FileNotFoundException if there is no such object.
+     */
+    public long length(@NonNull String name) throws IOException {
+        return readManifest(name).length;
+    }
+
+    public boolean contains(@NonNull String name) {
+        return new File(objects, toHex(hashName(name))).exists();
+    }
+
+    /**
+     * Deletes the object {@code name}, returning false if there was no
+     * such object.  Its chunks stay on disk until
+     * {@link #collectGarbage()}.
+     */
+    public boolean delete(@NonNull String name) {
+        return new File(objects, toHex(hashName(name))).delete();
+    }
+
+    /**
+     * Deletes every chunk that no object refers to, blocking puts while it
+     * runs.  If any manifest cannot be read, nothing is deleted.
+     *
+     * @return the number of chunks deleted.
+     */
+    public int collectGarbage() throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkNotClosed();
+
+            // Temp files are left by writes that died before their rename;
+            // no write can be in progress now.
+            Set<String> live = new HashSet<>();
+            for (File file : listFiles(objects)) {
+                if (file.getName().startsWith(".")) {
+                    file.delete();
+                    continue;
+                }
+                Manifest manifest = readManifest(file, null);
+                for (byte[] id : manifest.ids) {
+                    live.add(toHex(id));
+                }
+            }
+
+            int deleted = 0;
+            for (File prefix : listFiles(chunks)) {
+                for (File file : listFiles(prefix)) {
+                    if (!live.contains(file.getName()) && file.delete()) {
+                        deleted++;
+                    }
+                }
+            }
+            return deleted;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Wipes the keys.  Streams opened from this store fail once it is
+     * closed.
+     */
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Arrays.fill(key, 0, key.length, (byte) 0);
+            Arrays.fill(idKey, 0, idKey.length, (byte) 0);
+            Arrays.fill(macKey, 0, macKey.length, (byte) 0);
+            Arrays.fill(nameKey, 0, nameKey.length, (byte) 0);
+            Arrays.fill(gear, 0, gear.length, 0L);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static final class Manifest {
+        final byte[][] ids;
+        final int[] lengths;
+        final long length;
+
+        Manifest(byte[][] ids, int[] lengths, long length) {
+            this.ids = ids;
+            this.lengths = lengths;
+            this.length = length;
+        }
+    }
+
+    private Manifest readManifest(String name) throws IOException {
+        byte[] nameHash = hashName(name);
+        lock.readLock().lock();
+        try {
+            checkNotClosed();
+            return readManifest(new File(objects, toHex(nameHash)), nameHash);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Must hold the lock.  expectedNameHash may be null to accept a
+    // manifest under any name.
+    private Manifest readManifest(File file, byte[] expectedNameHash) throws IOException {
+        byte[] sealed = readFully(file, Integer.MAX_VALUE);
+        if (sealed.length < CryptoBytes.OVERHEAD + MANIFEST_HEADER_SIZE + Native.DIGEST_SIZE) {
+            throw new IOException("Manifest " + file + " is truncated");
+        }
+
+        byte[] plaintext = CryptoBytes.decrypt(key, sealed);
+        int bodyLength = plaintext.length - Native.DIGEST_SIZE;
+        byte[] mac = new byte[Native.DIGEST_SIZE];
+        Native.keyedHash(macKey, plaintext, 0, bodyLength, mac);
+        if (!constantTimeEquals(mac, 0, plaintext, bodyLength, mac.length)) {
+            throw new IOException("Manifest " + file + " is corrupt");
+        }
+
+        ByteBuffer body = ByteBuffer.wrap(plaintext, 0, bodyLength);
+        byte[] magic = new byte[MANIFEST_MAGIC.length];
+        body.get(magic);
+        if (!Arrays.equals(magic, MANIFEST_MAGIC) || body.get() != MANIFEST_VERSION) {
+            throw new IOException("Manifest " + file + " has an unsupported format");
+        }
+
+        // Binding the manifest to its name stops it being swapped for
+        // another object's by renaming files.
+        byte[] nameHash = new byte[Native.DIGEST_SIZE];
+        body.get(nameHash);
+        if (expectedNameHash != null && !Arrays.equals(nameHash, expectedNameHash)) {
+            throw new IOException("Manifest " + file + " belongs to another object");
+        }
+
+        int count = body.getInt();
+        long length = body.getLong();
+        if (count < 0 || (long) count * (Native.DIGEST_SIZE + 4) != body.remaining()) {
+            throw new IOException("Manifest " + file + " is corrupt");
+        }
+
+        byte[][] ids = new byte[count][];
+        int[] lengths = new int[count];
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            ids[i] = new byte[Native.DIGEST_SIZE];
+            body.get(ids[i]);
+            lengths[i] = body.getInt();
+            if (lengths[i] <= 0 || lengths[i] > ContentChunker.MAX_SIZE) {
+                throw new IOException("Manifest " + file + " is corrupt");
+            }
+            sum += lengths[i];
+        }
+        if (sum != length) {
+            throw new IOException("Manifest " + file + " is corrupt");
+        }
+        return new Manifest(ids, lengths, length);
+    }
+
+    // Reads, decrypts and verifies the chunk id into plaintext, which must
+    // have room for length bytes.
+    private void readChunk(byte[] id, int length, byte[] plaintext) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IOException("ChunkStore is closed");
+            }
+
+            File file = chunkFile(id);
+            byte[] ciphertext = readFully(file, ContentChunker.MAX_SIZE + CryptoBytes.OVERHEAD);
+            if (ciphertext.length != length + CryptoBytes.OVERHEAD) {
+                throw new IOException("Chunk " + file + " has the wrong length");
+            }
+
+            CryptoBytes.decrypt(key, ciphertext, 0, ciphertext.length, plaintext, 0);
+
+            byte[] actual = new byte[Native.DIGEST_SIZE];
+            Native.keyedHash(idKey, plaintext, 0, length, actual);
+            if (!constantTimeEquals(actual, 0, id, 0, id.length)) {
+                Arrays.fill(plaintext, 0, length, (byte) 0);
+                throw new IOException("Chunk " + file + " is corrupt");
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private final class ChunkInputStream extends InputStream {
+        private final Manifest manifest;
+
+        private int nextChunk = 0;
+        private int position = 0;
+        private int limit = 0;
+        private byte[] buffer = new byte[0];
+        private boolean closed = false;
+
+        ChunkInputStream(Manifest manifest) {
+            this.manifest = manifest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (closed) {
+                throw new IOException("Stream is closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            if (position == limit && !loadNextChunk()) {
+                return -1;
+            }
+
+            int n = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (closed) {
+                throw new IOException("Stream is closed");
+            }
+
+            long skipped = 0;
+            if (n > 0 && position < limit) {
+                int fromBuffer = (int) Math.min(n, limit - position);
+                position += fromBuffer;
+                skipped += fromBuffer;
+            }
+
+            // Whole chunks are passed over using the manifest alone.
+            while (skipped < n && nextChunk < manifest.ids.length
+                    && manifest.lengths[nextChunk] <= n - skipped) {
+                skipped += manifest.lengths[nextChunk];
+                nextChunk++;
+            }
+
+            if (skipped < n && loadNextChunk()) {
+                int fromBuffer = (int) Math.min(n - skipped, limit);
+                position = fromBuffer;
+                skipped += fromBuffer;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Arrays.fill(buffer, 0, buffer.length, (byte) 0);
+        }
+
+        private boolean loadNextChunk() throws IOException {
+            if (nextChunk >= manifest.ids.length) {
+                return false;
+            }
+
+            int length = manifest.lengths[nextChunk];
+            if (buffer.length < length) {
+                Arrays.fill(buffer, 0, buffer.length, (byte) 0);
+                buffer = new byte[Math.max(length, Math.min(2 * buffer.length, ContentChunker.MAX_SIZE))];
+            }
+
+            // Nothing from the previous chunk is readable past this point,
+            // even if this load fails.
+            position = 0;
+            limit = 0;
+            readChunk(manifest.ids[nextChunk], length, buffer);
+            nextChunk++;
+            limit = length;
+            return true;
+        }
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("ChunkStore is closed");
+        }
+    }
+
+    private byte[] hashName(String name) {
+        byte[] bytes = name.getBytes(UTF_8);
+        byte[] hash = new byte[Native.DIGEST_SIZE];
+        lock.readLock().lock();
+        try {
+            checkNotClosed();
+            Native.keyedHash(nameKey, bytes, 0, bytes.length, hash);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return hash;
+    }
+
+    private File chunkFile(byte[] id) {
+        String hex = toHex(id);
+        return new File(new File(chunks, hex.substring(0, 2)), hex);
+    }
+
+    // Writes to a temp file and renames it into place, so that readers and
+    // concurrent writers of the same chunk never see a partial file.
+    private void writeAtomically(File file, byte[] data, int length) throws IOException {
+        File parent = file.getParentFile();
+        mkdirs(parent);
+        File temp = File.createTempFile(".tmp", null, parent);
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(data, 0, length);
+                out.getFD().sync();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp + " to " + file);
+            }
+        } finally {
+            // Only still there if something failed.
+            temp.delete();
+        }
+    }
+
+    private static byte[] readFully(File file, int maxLength) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            long fileLength = in.getChannel().size();
+            if (fileLength > maxLength) {
+                throw new IOException(file + " is too large");
+            }
+
+            byte[] data = new byte[(int) fileLength];
+            int length = 0;
+            int n;
+            while (length < data.length && (n = in.read(data, length, data.length - length)) != -1) {
+                length += n;
+            }
+            if (length != data.length) {
+                throw new IOException(file + " changed while it was being read");
+            }
+            return data;
+        }
+    }
+
+    private static File[] listFiles(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + dir);
+        }
+        return files;
+    }
+
+    private static void mkdirs(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create " + dir);
+        }
+    }
+
+    private static byte[] deriveKey(byte[] key, String label) {
+        byte[] salt = Arrays.copyOf(label.getBytes(UTF_8), Native.NONCE_SIZE);
+        byte[] subkey = new byte[Native.KEY_SIZE];
+        Native.deriveKey(key, salt, subkey);
+        return subkey;
+    }
+
+    // The gear table is XChaCha20 keystream under a derived key: random
+    // looking, reproducible, and secret.
+    private static long[] deriveGear(byte[] key) {
+        byte[] gearKey = deriveKey(key, "cryptostream.chunk.gear");
+        byte[] stream = new byte[256 * 8];
+        Native.encrypt(gearKey, new byte[Native.NONCE_SIZE], 0, stream, stream.length);
+        Arrays.fill(gearKey, 0, gearKey.length, (byte) 0);
+
+        long[] gear = new long[256];
+        ByteBuffer.wrap(stream).asLongBuffer().get(gear);
+        Arrays.fill(stream, 0, stream.length, (byte) 0);
+        return gear;
+    }
+
+    private static boolean constantTimeEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        int diff = 0;
+        for (int i = 0; i < length; i++) {
+            diff |= a[aOffset + i] ^ b[bOffset + i];
+        }
+        return diff == 0;
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
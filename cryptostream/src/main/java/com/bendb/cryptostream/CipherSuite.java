@@ -0,0 +1,71 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * The ciphers that a {@link CryptoOutputStream} can write, identified in
+ * the stream header so that {@link CryptoInputStream} can select the right
+ * one when reading.
+ */
+public enum CipherSuite {
+    /**
+     * XChaCha20, exactly as in headerless streams.  Fast everywhere, and
+     * seekable to any byte.  Provides no integrity protection.
+     */
+    XCHACHA20(1),
+
+    /**
+     * AES-256-GCM over 8 KiB segments, each with its own 16-byte tag, under
+     * a key derived per stream.  Much faster than XChaCha20 where the CPU
+     * has AES instructions, but only available on such CPUs.  Tampering,
+     * reordering and truncation are all detected when reading.  Seekable to
+     * segment boundaries.
+     */
+    AES256GCM(2);
+
+    final int id;
+
+    CipherSuite(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Whether this cipher can be used on the current device.
+     */
+    public boolean isAvailable() {
+        return this != AES256GCM || Native.AES256GCM_AVAILABLE;
+    }
+
+    /**
+     * The fastest cipher available on the current device.
+     */
+    @NonNull
+    public static CipherSuite preferred() {
+        return AES256GCM.isAvailable() ? AES256GCM : XCHACHA20;
+    }
+
+    @Nullable
+    static CipherSuite forId(int id) {
+        for (CipherSuite suite : values()) {
+            if (suite.id == id) {
+                return suite;
+            }
+        }
+        return null;
+    }
+}
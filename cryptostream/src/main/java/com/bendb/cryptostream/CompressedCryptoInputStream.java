@@ -0,0 +1,359 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads data written by {@link CompressedCryptoOutputStream}.
+ *
+ * <p>Unlike {@link CryptoInputStream}, this stream reads from a
+ * {@link FileChannel} so that it can {@link #seek(long)} to any plaintext
+ * position.  Only the chunk containing that position is read, decrypted
+ * and inflated; the keystream is positioned directly at the chunk's block
+ * counter.
+ *
+ * <p>{@link CompressedCryptoOutputStream} writes headerless streams, but an
+ * XChaCha20 stream with a header is read the same way, starting after the
+ * header.  AES-256-GCM streams cannot be positioned by block counter and
+ * are rejected.
+ *
+ * <p>The channel's own position is never used or modified, and the channel
+ * is not closed by {@link #close()}.
+ */
+public class CompressedCryptoInputStream extends InputStream {
+
+    private final FileChannel channel;
+
+    private final byte[] key;
+    private final byte[] nonce = new byte[Native.NONCE_SIZE];
+
+    // Where the encrypted payload starts in the channel: after the nonce,
+    // and after the header if there is one.
+    private final long dataStart;
+
+    private final int chunkSize;
+    private final long[] chunkOffsets;
+    private final int[] chunkLengths;
+    private final long length;
+
+    private final Inflater inflater = new Inflater(true);
+    private byte[] ciphertext = new byte[0];
+    private final byte[] chunk;
+    private int currentChunk = -1;
+    private int chunkLimit = 0;
+
+    private long position = 0;
+
+    private final byte[] singleByte = new byte[1];
+
+    private boolean closed = false;
+
+    public CompressedCryptoInputStream(@NonNull FileChannel channel, @NonNull byte[] key) throws IOException {
+        if (key.length != Native.KEY_SIZE) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+
+        this.channel = channel;
+        this.key = key.clone();
+
+        byte[] prefix = new byte[StreamHeader.SIZE];
+        readFully(ByteBuffer.wrap(prefix, 0, nonce.length), 0);
+
+        CipherSuite suite = StreamHeader.parsePrefix(prefix);
+        if (suite == CipherSuite.AES256GCM) {
+            throw new IOException("AES-256-GCM streams cannot be read as compressed streams");
+        } else if (suite != null) {
+            readFully(ByteBuffer.wrap(prefix, nonce.length, StreamHeader.SIZE - nonce.length), nonce.length);
+            dataStart = StreamHeader.SIZE;
+        } else {
+            dataStart = nonce.length;
+        }
+        System.arraycopy(prefix, (int) dataStart - nonce.length, nonce, 0, nonce.length);
+        Arrays.fill(prefix, 0, prefix.length, (byte) 0);
+
+        long dataLength = channel.size() - dataStart;
+        if (dataLength < CompressedCryptoOutputStream.TRAILER_SIZE) {
+            throw new EOFException();
+        }
+
+        byte[] trailer = readPlaintext(
+                dataLength - CompressedCryptoOutputStream.TRAILER_SIZE,
+                CompressedCryptoOutputStream.TRAILER_SIZE);
+        if (getInt(trailer, 16) != CompressedCryptoOutputStream.MAGIC) {
+            throw new IOException("Not a compressed stream, or wrong key");
+        }
+
+        chunkSize = getInt(trailer, 0);
+        int chunkCount = getInt(trailer, 4);
+        length = ((long) getInt(trailer, 8) << 32) | (getInt(trailer, 12) & 0xFFFFFFFFL);
+
+        // The table is read in one piece, so besides fitting in the stream
+        // it must fit in an array, along with the skew to its first block.
+        long tableLength = chunkCount * 4L;
+        long tableOffset = dataLength - CompressedCryptoOutputStream.TRAILER_SIZE - tableLength;
+        if (chunkSize <= 0 || chunkCount < 0 || tableOffset < 0
+                || tableLength > Integer.MAX_VALUE - 64
+                || length > (long) chunkSize * chunkCount
+                || length <= (long) chunkSize * (chunkCount - 1)) {
+            throw new IOException("Corrupt chunk table");
+        }
+
+        byte[] table = readPlaintext(tableOffset, (int) tableLength);
+        chunkOffsets = new long[chunkCount];
+        chunkLengths = new int[chunkCount];
+        long offset = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            chunkOffsets[i] = offset;
+            chunkLengths[i] = getInt(table, i * 4);
+
+            // No chunk is ever stored larger than it was.
+            int compressedLength = chunkLengths[i] & ~CompressedCryptoOutputStream.STORED_FLAG;
+            if (compressedLength > chunkSize) {
+                throw new IOException("Corrupt chunk table");
+            }
+            offset += compressedLength;
+        }
+        if (offset != tableOffset) {
+            throw new IOException("Corrupt chunk table");
+        }
+
+        chunk = new byte[chunkSize];
+    }
+
+    /**
+     * The total number of plaintext bytes in the stream.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * The plaintext position of the next byte to be read.
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Moves to the given plaintext position.  Seeking is free; the work of
+     * loading the chunk is deferred until the next read.
+     */
+    public void seek(long position) {
+        checkNotClosed();
+
+        if (position < 0) {
+            throw new IllegalArgumentException("position cannot be negative");
+        }
+
+        this.position = Math.min(position, length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (read(singleByte, 0, 1) == -1) {
+            return -1;
+        }
+        return singleByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(@NonNull byte[] output, final int offset, final int length) throws IOException {
+        checkNotClosed();
+
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset cannot be negative");
+        }
+
+        if (length < 0) {
+            throw new IllegalArgumentException("length cannot be negative");
+        }
+
+        if (length + offset > output.length) {
+            throw new IllegalArgumentException("invalid length + offset");
+        }
+
+        if (position >= this.length) {
+            return length == 0 ? 0 : -1;
+        }
+
+        int bytesDelivered = 0;
+        while (bytesDelivered < length && position < this.length) {
+            int index = (int) (position / chunkSize);
+            if (index != currentChunk) {
+                loadChunk(index);
+            }
+
+            int chunkPosition = (int) (position - (long) index * chunkSize);
+            int toCopy = Math.min(length - bytesDelivered, chunkLimit - chunkPosition);
+            System.arraycopy(chunk, chunkPosition, output, offset + bytesDelivered, toCopy);
+
+            bytesDelivered += toCopy;
+            position += toCopy;
+        }
+
+        return bytesDelivered;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        checkNotClosed();
+
+        if (n <= 0) {
+            return 0;
+        }
+
+        long start = position;
+        seek(Math.min(length, position + n));
+        return position - start;
+    }
+
+    @Override
+    public int available() {
+        if (closed || currentChunk != (int) (position / chunkSize)) {
+            return 0;
+        }
+        return chunkLimit - (int) (position - (long) currentChunk * chunkSize);
+    }
+
+    private void loadChunk(int index) throws IOException {
+        int entry = chunkLengths[index];
+        int compressedLength = entry & ~CompressedCryptoOutputStream.STORED_FLAG;
+        boolean stored = (entry & CompressedCryptoOutputStream.STORED_FLAG) != 0;
+        int expected = (int) Math.min(chunkSize, length - (long) index * chunkSize);
+
+        currentChunk = -1;
+        Arrays.fill(chunk, 0, chunkLimit, (byte) 0);
+        chunkLimit = 0;
+
+        int skew = (int) (chunkOffsets[index] % 64);
+        decryptInto(chunkOffsets[index], compressedLength);
+
+        if (stored) {
+            if (compressedLength != expected) {
+                throw new IOException("Corrupt chunk " + index);
+            }
+            System.arraycopy(ciphertext, skew, chunk, 0, compressedLength);
+        } else {
+            inflater.reset();
+            inflater.setInput(ciphertext, skew, compressedLength);
+            try {
+                int inflated = 0;
+                while (inflated < expected) {
+                    int n = inflater.inflate(chunk, inflated, expected - inflated);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += n;
+                }
+                if (inflated != expected) {
+                    throw new IOException("Corrupt chunk " + index);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt chunk " + index, e);
+            }
+        }
+
+        Arrays.fill(ciphertext, 0, skew + compressedLength, (byte) 0);
+
+        currentChunk = index;
+        chunkLimit = expected;
+    }
+
+    private byte[] readPlaintext(long position, int length) throws IOException {
+        int skew = (int) (position % 64);
+        decryptInto(position, length);
+        byte[] result = Arrays.copyOfRange(ciphertext, skew, skew + length);
+        Arrays.fill(ciphertext, 0, skew + length, (byte) 0);
+        return result;
+    }
+
+    /**
+     * Reads and decrypts the given range of the encrypted payload into
+     * {@code ciphertext}, starting at the enclosing 64-byte block so that
+     * the keystream counter lines up.  The requested bytes begin at
+     * {@code position % 64}.
+     */
+    private void decryptInto(long position, int length) throws IOException {
+        long counter = position / 64;
+        int skew = (int) (position % 64);
+        int total = skew + length;
+        if (ciphertext.length < total) {
+            ciphertext = new byte[total];
+        }
+
+        readFully(ByteBuffer.wrap(ciphertext, 0, total), dataStart + counter * 64);
+        Native.decrypt(key, nonce, counter, ciphertext, total);
+    }
+
+    private void readFully(ByteBuffer dst, long filePosition) throws IOException {
+        long pos = filePosition;
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, pos);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            pos += n;
+        }
+    }
+
+    private static int getInt(byte[] src, int pos) {
+        return ((src[pos] & 0xFF) << 24)
+                | ((src[pos + 1] & 0xFF) << 16)
+                | ((src[pos + 2] & 0xFF) << 8)
+                | (src[pos + 3] & 0xFF);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        inflater.end();
+        Arrays.fill(chunk, 0, chunk.length, (byte) 0);
+        Arrays.fill(ciphertext, 0, ciphertext.length, (byte) 0);
+        Arrays.fill(nonce, 0, nonce.length, (byte) 0);
+        Arrays.fill(key, 0, key.length, (byte) 0);
+        currentChunk = -1;
+        chunkLimit = 0;
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Stream closed");
+        }
+    }
+}
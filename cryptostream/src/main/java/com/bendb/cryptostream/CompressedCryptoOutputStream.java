@@ -0,0 +1,206 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream;
+
+import androidx.annotation.NonNull;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * An OutputStream decorator that compresses bytes in independent chunks,
+ * then encrypts them exactly as {@link CryptoOutputStream} would.
+ *
+ * <p>Each chunk of {@code chunkSize} plaintext bytes is deflated on its
+ * own, and a table of compressed chunk lengths is appended when the stream
+ * is closed.  Because no chunk depends on any other, a
+ * {@link CompressedCryptoInputStream} can seek to any position by
+ * decrypting and inflating only the chunk that contains it.  Chunks that do
+ * not shrink are stored as-is.
+ *
+ * <p>The encrypted layout, after the nonce, is:
+ * <pre>
+ *   chunk[0] .. chunk[n - 1]
+ *   int32 length[0] .. length[n - 1]   (high bit set if the chunk is stored)
+ *   int32 chunkSize
+ *   int32 n
+ *   int64 uncompressed length
+ *   int32 MAGIC
+ * </pre>
+ */
+public class CompressedCryptoOutputStream extends FilterOutputStream {
+
+    static final int MAGIC = 0x43535A31; // "CSZ1"
+    static final int TRAILER_SIZE = 4 + 4 + 8 + 4;
+    static final int STORED_FLAG = 0x80000000;
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final CryptoOutputStream cryptoOut;
+    private final Deflater deflater;
+
+    private final byte[] chunk;
+    private int chunkIndex = 0;
+    private final byte[] compressed;
+
+    private int[] lengths = new int[16];
+    private int chunkCount = 0;
+    private long uncompressedLength = 0;
+
+    private final byte[] singleByte = new byte[1];
+
+    private boolean closed = false;
+
+    public CompressedCryptoOutputStream(@NonNull OutputStream out, @NonNull byte[] key) throws IOException {
+        this(out, key, DEFAULT_CHUNK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public CompressedCryptoOutputStream(
+            @NonNull OutputStream out,
+            @NonNull byte[] key,
+            int chunkSize,
+            int level) throws IOException {
+        this(new CryptoOutputStream(out, key), chunkSize, level);
+    }
+
+    private CompressedCryptoOutputStream(CryptoOutputStream cryptoOut, int chunkSize, int level) {
+        super(cryptoOut);
+
+        if (chunkSize <= 0 || (chunkSize & STORED_FLAG) != 0) {
+            throw new IllegalArgumentException("Invalid chunk size");
+        }
+
+        this.cryptoOut = cryptoOut;
+        this.deflater = new Deflater(level, true);
+        this.chunk = new byte[chunkSize];
+        this.compressed = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull final byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(@NonNull final byte[] b, final int off, final int len) throws IOException {
+        checkNotClosed();
+
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        int currentOffset = off;
+        int bytesRemaining = len;
+        while (bytesRemaining > 0) {
+            int toCopy = Math.min(bytesRemaining, chunk.length - chunkIndex);
+            System.arraycopy(b, currentOffset, chunk, chunkIndex, toCopy);
+            chunkIndex += toCopy;
+            currentOffset += toCopy;
+            bytesRemaining -= toCopy;
+
+            if (chunkIndex == chunk.length) {
+                writeChunk();
+            }
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        deflater.reset();
+        deflater.setInput(chunk, 0, chunkIndex);
+        deflater.finish();
+
+        int compressedLength = 0;
+        while (!deflater.finished() && compressedLength < compressed.length) {
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+
+        int entry;
+        if (deflater.finished() && compressedLength < chunkIndex) {
+            cryptoOut.write(compressed, 0, compressedLength);
+            entry = compressedLength;
+        } else {
+            cryptoOut.write(chunk, 0, chunkIndex);
+            entry = chunkIndex | STORED_FLAG;
+        }
+
+        if (chunkCount == lengths.length) {
+            lengths = Arrays.copyOf(lengths, lengths.length * 2);
+        }
+        lengths[chunkCount++] = entry;
+        uncompressedLength += chunkIndex;
+
+        Arrays.fill(chunk, 0, chunkIndex, (byte) 0);
+        Arrays.fill(compressed, 0, compressedLength, (byte) 0);
+        chunkIndex = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // noop; chunks are only written once they are full, or on close.
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (chunkIndex > 0) {
+                writeChunk();
+            }
+
+            byte[] trailer = new byte[chunkCount * 4 + TRAILER_SIZE];
+            int pos = 0;
+            for (int i = 0; i < chunkCount; i++) {
+                pos = putInt(trailer, pos, lengths[i]);
+            }
+            pos = putInt(trailer, pos, chunk.length);
+            pos = putInt(trailer, pos, chunkCount);
+            pos = putInt(trailer, pos, (int) (uncompressedLength >>> 32));
+            pos = putInt(trailer, pos, (int) uncompressedLength);
+            putInt(trailer, pos, MAGIC);
+
+            cryptoOut.write(trailer);
+        } finally {
+            deflater.end();
+            cryptoOut.close();
+        }
+    }
+
+    private static int putInt(byte[] dst, int pos, int value) {
+        dst[pos] = (byte) (value >>> 24);
+        dst[pos + 1] = (byte) (value >>> 16);
+        dst[pos + 2] = (byte) (value >>> 8);
+        dst[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Stream closed.");
+        }
+    }
+}
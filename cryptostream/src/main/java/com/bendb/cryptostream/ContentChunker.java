@@ -0,0 +1,133 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a stream into content-defined chunks, FastCDC style: a gear hash
+ * rolls over the data and a chunk ends wherever its high bits are all
+ * zero.  Boundaries depend only on nearby bytes, so an insertion near the
+ * start of a file moves the boundaries around it and leaves the rest
+ * alone.
+ *
+ * <p>Chunks fall between {@link #MIN_SIZE} and {@link #MAX_SIZE} bytes,
+ * averaging around {@link #AVERAGE_SIZE}.  Before the average size a
+ * stricter mask is used, and after it a looser one, which narrows the
+ * spread of chunk sizes around the average.
+ */
+final class ContentChunker {
+
+    static final int MIN_SIZE = 16 * 1024;
+    static final int AVERAGE_SIZE = 64 * 1024;
+    static final int MAX_SIZE = 256 * 1024;
+
+    // Each shift pushes older bytes out of the top of the hash, so the high
+    // bits depend on the last 64 bytes and the low bits on only a few.
+    private static final long MASK_STRICT = ((1L << 18) - 1) << 46;
+    private static final long MASK_LOOSE = ((1L << 14) - 1) << 50;
+
+    private final InputStream in;
+    private final long[] gear;
+    private final byte[] buffer = new byte[MAX_SIZE];
+    private int chunkLength = 0;
+    private int end = 0;
+    private boolean eof = false;
+
+    /**
+     * @param gear 256 random values.  Keying these stops chunk lengths
+     *             from revealing which known content a store holds.
+     */
+    ContentChunker(InputStream in, long[] gear) {
+        if (gear.length != 256) {
+            throw new IllegalArgumentException("gear must have 256 entries");
+        }
+
+        this.in = in;
+        this.gear = gear;
+    }
+
+    /**
+     * Advances to the next chunk, which then occupies the first
+     * {@code length} bytes of {@link #buffer()}.
+     *
+     * @return the length of the chunk, or -1 at the end of the stream.
+     */
+    int next() throws IOException {
+        // Move what is left after the previous chunk to the front, then
+        // top the buffer up.  Cut points are only searched for in a full
+        // buffer, so they do not depend on how the stream happens to
+        // split its reads.
+        int remaining = end - chunkLength;
+        System.arraycopy(buffer, chunkLength, buffer, 0, remaining);
+        end = remaining;
+        chunkLength = 0;
+
+        while (!eof && end < buffer.length) {
+            int n = in.read(buffer, end, buffer.length - end);
+            if (n == -1) {
+                eof = true;
+            } else {
+                end += n;
+            }
+        }
+
+        if (end == 0) {
+            return -1;
+        }
+
+        chunkLength = cutPoint(buffer, end, gear);
+        return chunkLength;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * Zeroes the buffer, which holds plaintext.
+     */
+    void wipe() {
+        Arrays.fill(buffer, 0, buffer.length, (byte) 0);
+        chunkLength = 0;
+        end = 0;
+    }
+
+    static int cutPoint(byte[] data, int length, long[] gear) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+
+        int normal = Math.min(length, AVERAGE_SIZE);
+        int limit = Math.min(length, MAX_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + gear[data[i] & 0xFF];
+            if ((hash & MASK_STRICT) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + gear[data[i] & 0xFF];
+            if ((hash & MASK_LOOSE) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,508 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Encrypts or decrypts every file in a directory tree, mirroring the tree
+ * under a destination directory.
+ *
+ * <p>Files are processed by a fixed number of worker threads.  The tree is
+ * walked lazily into a bounded queue, so walking a very large library
+ * never gets more than a few files ahead of the workers, and each worker
+ * only ever holds one copy buffer.
+ *
+ * <p>Each output is written to a temporary file next to its destination,
+ * synced, and renamed into place once complete, so a destination file is
+ * either absent or whole, even after a crash.  If a checkpoint file is
+ * given, the relative path of every completed file is appended to it and
+ * synced once that file's rename is itself on disk, and files already
+ * listed there are skipped; re-running an interrupted or cancelled job
+ * therefore picks up where it left off.
+ *
+ * <p>Symbolic links to directories are not followed, so a link loop
+ * cannot send the walk in circles; links to files are processed like
+ * files.
+ *
+ * <p>A job may only be {@link #run()} once.
+ */
+public final class CryptoBatchJob {
+
+    public enum Mode {
+        ENCRYPT,
+        DECRYPT
+    }
+
+    /**
+     * Receives progress notifications.  Methods are called from worker
+     * threads, and must be thread-safe.
+     */
+    public interface Listener {
+        void onFileCompleted(@NonNull File source, @NonNull File destination, long filesCompleted, long bytesCompleted);
+        void onFileFailed(@NonNull File source, @NonNull IOException error);
+    }
+
+    public static final class Result {
+        public final long filesCompleted;
+        public final long filesSkipped;
+        public final long filesFailed;
+        public final long bytesCompleted;
+        public final boolean cancelled;
+
+        Result(long filesCompleted, long filesSkipped, long filesFailed, long bytesCompleted, boolean cancelled) {
+            this.filesCompleted = filesCompleted;
+            this.filesSkipped = filesSkipped;
+            this.filesFailed = filesFailed;
+            this.bytesCompleted = bytesCompleted;
+            this.cancelled = cancelled;
+        }
+    }
+
+    public static final class Builder {
+        private final Mode mode;
+        private final File source;
+        private final File destination;
+        private final byte[] key;
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+        private int bufferSize = 256 * 1024;
+        @Nullable private File checkpoint;
+        @Nullable private Listener listener;
+        private boolean built = false;
+
+        public Builder(@NonNull Mode mode, @NonNull File source, @NonNull File destination, @NonNull byte[] key) {
+            if (key.length != Native.KEY_SIZE) {
+                throw new IllegalArgumentException("Invalid key");
+            }
+
+            this.mode = mode;
+            this.source = source;
+            this.destination = destination;
+            this.key = key.clone();
+        }
+
+        /**
+         * The number of files processed at once; defaults to the number of
+         * available processors.
+         */
+        @NonNull
+        public Builder parallelism(int parallelism) {
+            if (parallelism <= 0) {
+                throw new IllegalArgumentException("parallelism must be positive");
+            }
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * The size of each worker's copy buffer.  Multiples of 8 KiB avoid
+         * re-buffering in the crypto streams.
+         */
+        @NonNull
+        public Builder bufferSize(int bufferSize) {
+            if (bufferSize <= 0) {
+                throw new IllegalArgumentException("bufferSize must be positive");
+            }
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        @NonNull
+        public Builder checkpoint(@Nullable File checkpoint) {
+            this.checkpoint = checkpoint;
+            return this;
+        }
+
+        @NonNull
+        public Builder listener(@Nullable Listener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * Builds the job, which takes over this builder's copy of the key
+         * and wipes it when it finishes running.  A builder can only build
+         * one job.
+         */
+        @NonNull
+        public CryptoBatchJob build() throws IOException {
+            if (built) {
+                throw new IllegalStateException("Builder has already been used");
+            }
+            built = true;
+            try {
+                return new CryptoBatchJob(this);
+            } catch (IOException | RuntimeException e) {
+                Arrays.fill(key, 0, key.length, (byte) 0);
+                throw e;
+            }
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String TEMP_SUFFIX = ".cryptostream-tmp";
+    private static final File END_OF_WORK = new File("");
+
+    private final Mode mode;
+    private final File source;
+    private final File destination;
+    private final byte[] key;
+    private final int parallelism;
+    private final int bufferSize;
+    @Nullable private final File checkpoint;
+    @Nullable private final Listener listener;
+
+    private final AtomicLong filesCompleted = new AtomicLong();
+    private final AtomicLong filesSkipped = new AtomicLong();
+    private final AtomicLong filesFailed = new AtomicLong();
+    private final AtomicLong bytesCompleted = new AtomicLong();
+
+    @Nullable private FileOutputStream checkpointStream;
+    @Nullable private Writer checkpointWriter;
+
+    // The first exception thrown by the listener.  Workers carry on past
+    // it, since a dead worker would leave the queue full and run() blocked
+    // forever, and run() rethrows it once they have stopped.
+    private final AtomicReference<RuntimeException> listenerFailure = new AtomicReference<>();
+
+    private volatile boolean cancelled = false;
+    private boolean started = false;
+
+    private CryptoBatchJob(Builder builder) throws IOException {
+        this.mode = builder.mode;
+        this.source = builder.source.getCanonicalFile();
+        this.destination = builder.destination.getCanonicalFile();
+        this.key = builder.key;
+        this.parallelism = builder.parallelism;
+        this.bufferSize = builder.bufferSize;
+        this.checkpoint = builder.checkpoint;
+        this.listener = builder.listener;
+
+        if (!source.isDirectory()) {
+            throw new IllegalArgumentException("source is not a directory");
+        }
+
+        String sourcePath = source.getPath() + File.separator;
+        String destinationPath = destination.getPath() + File.separator;
+        if (destinationPath.startsWith(sourcePath) || sourcePath.startsWith(destinationPath)) {
+            throw new IllegalArgumentException("source and destination must not overlap");
+        }
+    }
+
+    /**
+     * Requests that the job stop as soon as possible.  Files in progress are
+     * abandoned and their temporary outputs deleted; completed files remain,
+     * and are recorded in the checkpoint.  May be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Processes the tree, blocking until every file has been handled or the
+     * job is cancelled.  Failures of individual files are reported to the
+     * listener and counted, but do not stop the job.
+     *
+     * @throws RuntimeException the first exception thrown by the listener,
+     *         once every file has been handled.
+     */
+    @NonNull
+    public Result run() throws IOException, InterruptedException {
+        synchronized (this) {
+            if (started) {
+                throw new IllegalStateException("Job has already been run");
+            }
+            started = true;
+        }
+
+        final Set<String> done = readCheckpoint();
+        if (checkpoint != null) {
+            boolean created = !checkpoint.exists();
+            checkpointStream = new FileOutputStream(checkpoint, true);
+            checkpointWriter = new OutputStreamWriter(checkpointStream, UTF_8);
+
+            File checkpointDir = checkpoint.getAbsoluteFile().getParentFile();
+            if (created && checkpointDir != null) {
+                Native.syncDirectory(checkpointDir.getPath());
+            }
+        }
+
+        final BlockingQueue<File> queue = new ArrayBlockingQueue<>(parallelism * 2);
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "CryptoBatchJob-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        try {
+            for (int i = 0; i < parallelism; i++) {
+                workers.execute(() -> work(queue));
+            }
+
+            walk(done, queue);
+        } finally {
+            for (int i = 0; i < parallelism; i++) {
+                queue.put(END_OF_WORK);
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                // keep waiting; workers exit promptly once they see END_OF_WORK
+            }
+
+            Arrays.fill(key, 0, key.length, (byte) 0);
+            if (checkpointWriter != null) {
+                checkpointWriter.close();
+            }
+        }
+
+        RuntimeException failure = listenerFailure.get();
+        if (failure != null) {
+            throw failure;
+        }
+
+        return new Result(
+                filesCompleted.get(),
+                filesSkipped.get(),
+                filesFailed.get(),
+                bytesCompleted.get(),
+                cancelled);
+    }
+
+    private Set<String> readCheckpoint() throws IOException {
+        if (checkpoint == null || !checkpoint.exists()) {
+            return Collections.emptySet();
+        }
+
+        Set<String> done = new HashSet<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpoint), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    done.add(line);
+                }
+            }
+        }
+        return done;
+    }
+
+    private void walk(Set<String> done, BlockingQueue<File> queue) throws IOException, InterruptedException {
+        Deque<File> directories = new ArrayDeque<>();
+        directories.push(source);
+
+        while (!directories.isEmpty() && !cancelled) {
+            File directory = directories.pop();
+            File[] children = directory.listFiles();
+            if (children == null) {
+                throw new IOException("Cannot list " + directory);
+            }
+            Arrays.sort(children);
+
+            for (File child : children) {
+                if (cancelled) {
+                    return;
+                }
+
+                if (child.isDirectory()) {
+                    // Directories on the stack are canonical, so a child
+                    // whose canonical path differs is a symbolic link.
+                    if (child.getCanonicalPath().equals(child.getPath())) {
+                        directories.push(child);
+                    }
+                } else if (child.isFile() && !child.getName().endsWith(TEMP_SUFFIX)) {
+                    if (done.contains(relativePath(child))) {
+                        filesSkipped.incrementAndGet();
+                    } else {
+                        queue.put(child);
+                    }
+                }
+            }
+        }
+    }
+
+    private void work(BlockingQueue<File> queue) {
+        byte[] buffer = new byte[bufferSize];
+        try {
+            while (true) {
+                File file = queue.take();
+                if (file == END_OF_WORK) {
+                    return;
+                }
+                if (cancelled) {
+                    continue;
+                }
+
+                try {
+                    process(file, buffer);
+                } catch (IOException | RuntimeException e) {
+                    if (!cancelled) {
+                        filesFailed.incrementAndGet();
+                        notifyFailed(file, e instanceof IOException ? (IOException) e : new IOException(e));
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Arrays.fill(buffer, 0, buffer.length, (byte) 0);
+        }
+    }
+
+    private void process(File file, byte[] buffer) throws IOException {
+        String relativePath = relativePath(file);
+        File target = new File(destination, relativePath);
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Cannot create " + parent);
+        }
+
+        File temp = new File(parent, target.getName() + TEMP_SUFFIX);
+        long bytes = 0;
+        boolean success = false;
+        try {
+            try (FileOutputStream fos = new FileOutputStream(temp);
+                 InputStream in = openInput(file);
+                 OutputStream out = openOutput(fos)) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    if (cancelled) {
+                        throw new IOException("Cancelled");
+                    }
+                    out.write(buffer, 0, n);
+                    bytes += n;
+                }
+
+                // The checkpoint will claim this file is done, so it must
+                // be on disk before the rename makes it visible.
+                if (out instanceof CryptoOutputStream) {
+                    ((CryptoOutputStream) out).flushFinalBlock();
+                }
+                fos.getFD().sync();
+            }
+
+            if (!temp.renameTo(target)) {
+                throw new IOException("Cannot rename " + temp + " to " + target);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                temp.delete();
+            }
+        }
+
+        // Likewise the rename, and any directories made for it, must be on
+        // disk before the checkpoint says the file is done; otherwise a
+        // resumed job would skip a file that a crash lost.
+        for (File dir = parent; dir != null; dir = dir.getParentFile()) {
+            Native.syncDirectory(dir.getPath());
+            if (dir.equals(destination)) {
+                break;
+            }
+        }
+
+        recordCompleted(relativePath);
+
+        long completed = filesCompleted.incrementAndGet();
+        long totalBytes = bytesCompleted.addAndGet(bytes);
+        if (listener != null) {
+            try {
+                listener.onFileCompleted(file, target, completed, totalBytes);
+            } catch (RuntimeException e) {
+                listenerFailure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    private void notifyFailed(File file, IOException error) {
+        if (listener != null) {
+            try {
+                listener.onFileFailed(file, error);
+            } catch (RuntimeException e) {
+                listenerFailure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    private InputStream openInput(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (mode == Mode.ENCRYPT) {
+            return in;
+        }
+
+        try {
+            return new CryptoInputStream(in, key);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private OutputStream openOutput(FileOutputStream out) throws IOException {
+        if (mode == Mode.DECRYPT) {
+            return out;
+        }
+
+        try {
+            return new CryptoOutputStream(out, key);
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    private void recordCompleted(String relativePath) throws IOException {
+        if (checkpointWriter == null) {
+            return;
+        }
+
+        synchronized (checkpointWriter) {
+            checkpointWriter.write(relativePath);
+            checkpointWriter.write('\n');
+            checkpointWriter.flush();
+            checkpointStream.getFD().sync();
+        }
+    }
+
+    private String relativePath(File file) {
+        return file.getPath().substring(source.getPath().length() + 1);
+    }
+}
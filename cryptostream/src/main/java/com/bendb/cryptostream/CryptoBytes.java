@@ -0,0 +1,147 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream;
+
+import androidx.annotation.NonNull;
+
+/**
+ * One-shot encryption and decryption of small payloads held in memory.
+ *
+ * <p>The output is exactly what a headerless {@link CryptoOutputStream}
+ * would write for the same plaintext: a random nonce followed by the
+ * XChaCha20 ciphertext.  Either side can therefore be swapped for a stream.
+ * Each call makes a single native call and at most one allocation, the
+ * result array.
+ */
+public final class CryptoBytes {
+
+    /**
+     * The number of bytes encryption adds to a payload.
+     */
+    public static final int OVERHEAD = Native.NONCE_SIZE;
+
+    /**
+     * Encrypts {@code plaintext}, returning the nonce-prefixed ciphertext.
+     */
+    @NonNull
+    public static byte[] encrypt(@NonNull byte[] key, @NonNull byte[] plaintext) {
+        checkKey(key);
+
+        byte[] result = new byte[plaintext.length + OVERHEAD];
+        Native.encryptBytes(key, plaintext, 0, plaintext.length, result, 0);
+        return result;
+    }
+
+    /**
+     * Encrypts {@code length} bytes of {@code input} into {@code output},
+     * which must have room for {@code length + OVERHEAD} bytes at
+     * {@code outputOffset}.
+     *
+     * @return the number of bytes written.
+     */
+    public static int encrypt(
+            @NonNull byte[] key,
+            @NonNull byte[] input,
+            int inputOffset,
+            int length,
+            @NonNull byte[] output,
+            int outputOffset) {
+        checkKey(key);
+        checkBounds(input, inputOffset, length);
+        checkBounds(output, outputOffset, length + OVERHEAD);
+        checkDistinct(input, output);
+
+        Native.encryptBytes(key, input, inputOffset, length, output, outputOffset);
+        return length + OVERHEAD;
+    }
+
+    /**
+     * Decrypts nonce-prefixed {@code ciphertext}, returning the plaintext.
+     *
+     * @throws IllegalArgumentException if {@code ciphertext} is too short
+     *         to hold a nonce.
+     */
+    @NonNull
+    public static byte[] decrypt(@NonNull byte[] key, @NonNull byte[] ciphertext) {
+        checkKey(key);
+        checkCiphertextLength(ciphertext.length);
+
+        byte[] result = new byte[ciphertext.length - OVERHEAD];
+        Native.decryptBytes(key, ciphertext, 0, ciphertext.length, result, 0);
+        return result;
+    }
+
+    /**
+     * Decrypts {@code length} bytes of nonce-prefixed ciphertext from
+     * {@code input} into {@code output}, which must have room for
+     * {@code length - OVERHEAD} bytes at {@code outputOffset}.
+     *
+     * @return the number of bytes written.
+     */
+    public static int decrypt(
+            @NonNull byte[] key,
+            @NonNull byte[] input,
+            int inputOffset,
+            int length,
+            @NonNull byte[] output,
+            int outputOffset) {
+        checkKey(key);
+        checkBounds(input, inputOffset, length);
+        checkCiphertextLength(length);
+        checkBounds(output, outputOffset, length - OVERHEAD);
+        checkDistinct(input, output);
+
+        Native.decryptBytes(key, input, inputOffset, length, output, outputOffset);
+        return length - OVERHEAD;
+    }
+
+    private static void checkKey(byte[] key) {
+        if (key.length != Native.KEY_SIZE) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+    }
+
+    private static void checkCiphertextLength(int length) {
+        if (length < OVERHEAD) {
+            throw new IllegalArgumentException("Ciphertext is shorter than the nonce");
+        }
+    }
+
+    private static void checkBounds(byte[] array, int offset, int length) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset cannot be negative");
+        }
+
+        if (length < 0) {
+            throw new IllegalArgumentException("length cannot be negative");
+        }
+
+        if ((long) length + offset > array.length) {
+            throw new IllegalArgumentException("invalid length + offset");
+        }
+    }
+
+    private static void checkDistinct(byte[] input, byte[] output) {
+        // The output is shifted by the nonce relative to the input, so the
+        // two can never safely share an array.
+        if (input == output) {
+            throw new IllegalArgumentException("input and output must be different arrays");
+        }
+    }
+
+    private CryptoBytes() {
+        // no instances
+    }
+}
@@ -15,49 +15,268 @@
 package com.bendb.cryptostream;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
 import java.util.Arrays;
 
+/**
+ * An InputStream decorator that decrypts a stream written by
+ * {@link CryptoOutputStream}.
+ *
+ * <p>Streams that begin with a header are decrypted with the
+ * {@link CipherSuite} it names; headerless streams are XChaCha20.
+ *
+ * <p>A stream opened with {@code secureMemory} keeps its key and decrypted
+ * block in guarded off-heap memory instead of Java arrays; see
+ * {@link #CryptoInputStream(InputStream, byte[], byte[], boolean)}.
+ *
+ * <p>A stream can also follow one that is still being written, decrypting
+ * ciphertext as it arrives; see
+ * {@link #CryptoInputStream(InputStream, byte[], byte[], boolean, long)}.
+ */
 public class CryptoInputStream extends FilterInputStream {
 
+    private final CipherSuite suite;
+    @Nullable
     private final byte[] key;
-    private final byte[] nonce = new byte[Native.nonceSize()];
+    private final byte[] nonce = new byte[Native.NONCE_SIZE];
 
-    private final byte[] buffer = new byte[Native.blockSize()];
+    // Holds one segment of ciphertext: BLOCK_SIZE bytes, plus a tag for AEAD suites.
+    private final byte[] buffer;
     private int bufferIndex = 0;
+
+    // For XChaCha20, the keystream block counter; for AES-256-GCM, the segment index.
     private long counter = 0;
 
+    // With secure memory, key is null and buffer only ever holds ciphertext;
+    // the plaintext is the bufferIndex bytes of block at blockPosition.
+    @Nullable
+    private final SecureBuffer secureKey;
+    @Nullable
+    private final SecureBuffer block;
+    private int blockPosition = 0;
+
     private final byte[] singleByte = new byte[1];
 
+    @Nullable
+    private final byte[] hashState;
+    @Nullable
+    private final byte[] expectedDigest;
+
     private boolean eof = false;
     private boolean closed = false;
 
+    // In follow mode, running out of input is not the end of the stream
+    // until stopFollowing() is called.  Ciphertext of a trailing partial
+    // keystream block is held in tail until the rest of the block arrives.
+    private final long followIntervalMillis;
+    private volatile boolean following;
+    private final Object followLock = new Object();
+    @Nullable
+    private final byte[] tail;
+    private int tailLength = 0;
+
     public CryptoInputStream(@NonNull InputStream in, @NonNull byte[] key) throws IOException {
+        this(in, key, null);
+    }
+
+    /**
+     * Creates a stream that, when {@code expectedDigest} is non-null, hashes
+     * the plaintext as it is decrypted and compares the result against the
+     * digest returned by {@link CryptoOutputStream#flushFinalBlock()}.
+     *
+     * <p>A mismatch is reported as an {@link IOException} when the end of
+     * the stream is reached, before the final block is returned.  Skipping
+     * still works, but has to decrypt the skipped bytes in order to hash them.
+     */
+    public CryptoInputStream(@NonNull InputStream in, @NonNull byte[] key, @Nullable byte[] expectedDigest) throws IOException {
+        this(in, key, expectedDigest, false);
+    }
+
+    /**
+     * Creates a stream that, when {@code secureMemory} is true, keeps the key
+     * and the decrypted block in memory from {@code sodium_malloc} rather
+     * than in Java arrays.  That memory is never moved or copied by the
+     * garbage collector, is locked so that it is not swapped out, and sits
+     * between guard pages.  Only ciphertext passes through the Java heap,
+     * with one exception: when {@code expectedDigest} is given, the BLAKE2b
+     * state is a Java array, and it buffers up to 256 bytes of recent
+     * plaintext between blocks.  It is wiped once the digest is checked or
+     * the stream is closed.
+     *
+     * <p>The block is wiped once each time it is refilled, and freed when the
+     * stream is closed, instead of being partly zeroed after every read.
+     * Such streams must always be closed; their memory is not reclaimed by
+     * the garbage collector.
+     */
+    public CryptoInputStream(
+            @NonNull InputStream in,
+            @NonNull byte[] key,
+            @Nullable byte[] expectedDigest,
+            boolean secureMemory) throws IOException {
+        this(in, key, expectedDigest, secureMemory, 0);
+    }
+
+    /**
+     * Creates a stream that, when {@code followIntervalMillis} is positive,
+     * follows a stream that is still being written, like {@code tail -f}.
+     * Reaching the end of {@code in} does not end this stream; instead,
+     * reads block, checking {@code in} for more ciphertext every
+     * {@code followIntervalMillis}, until {@link #stopFollowing()} is
+     * called.  That includes the constructor, if the writer has not yet
+     * written the nonce.
+     *
+     * <p>Each complete 64-byte keystream block is decrypted as soon as it
+     * arrives, while a trailing partial block is held back until the rest
+     * of it does.  A reader of an XChaCha20 stream whose writer calls
+     * {@link CryptoOutputStream#flush()} therefore trails it by about the
+     * interval.  AES-256-GCM segments can only be opened whole, so readers
+     * of those streams trail by up to a segment.
+     *
+     * <p>{@code in} must report its current end with -1 and return data
+     * written later on later reads, as a {@link java.io.FileInputStream}
+     * does; streams that block until data arrives, like pipes, also work.
+     */
+    public CryptoInputStream(
+            @NonNull InputStream in,
+            @NonNull byte[] key,
+            @Nullable byte[] expectedDigest,
+            boolean secureMemory,
+            long followIntervalMillis) throws IOException {
         super(in);
 
-        if (key.length != Native.keySize()) {
+        if (key.length != Native.KEY_SIZE) {
             throw new IllegalArgumentException("Invalid key");
         }
 
-        this.key = key.clone();
+        if (followIntervalMillis < 0) {
+            throw new IllegalArgumentException("followIntervalMillis cannot be negative");
+        }
+
+        this.followIntervalMillis = followIntervalMillis;
+        this.following = followIntervalMillis > 0;
+        this.tail = following ? new byte[64] : null;
+
+        if (expectedDigest != null) {
+            if (expectedDigest.length != Native.DIGEST_SIZE) {
+                throw new IllegalArgumentException("Invalid digest");
+            }
+            this.expectedDigest = expectedDigest.clone();
+            this.hashState = new byte[Native.HASH_STATE_SIZE];
+            Native.hashInit(hashState);
+        } else {
+            this.expectedDigest = null;
+            this.hashState = null;
+        }
+
+        readFully(nonce, 0, nonce.length);
 
+        CipherSuite headerSuite = StreamHeader.parsePrefix(nonce);
+        if (headerSuite != null) {
+            int prefix = StreamHeader.PREFIX_SIZE;
+            System.arraycopy(nonce, prefix, nonce, 0, nonce.length - prefix);
+            readFully(nonce, nonce.length - prefix, prefix);
+            suite = headerSuite;
+        } else {
+            suite = CipherSuite.XCHACHA20;
+        }
+
+        byte[] streamKey;
+        if (suite == CipherSuite.AES256GCM) {
+            if (!suite.isAvailable()) {
+                throw new IOException("AES-256-GCM is not supported on this device");
+            }
+
+            streamKey = new byte[Native.KEY_SIZE];
+            Native.deriveKey(key, nonce, streamKey);
+            Arrays.fill(nonce, 0, nonce.length, (byte) 0);
+            this.buffer = new byte[Native.BLOCK_SIZE + Native.AEAD_TAG_SIZE];
+        } else {
+            streamKey = key.clone();
+            this.buffer = new byte[Native.BLOCK_SIZE];
+        }
+
+        if (secureMemory) {
+            // Secure buffers are never reclaimed by the collector, so one
+            // allocated before a later failure must be freed here.
+            SecureBuffer secureBlock = new SecureBuffer(Native.BLOCK_SIZE);
+            try {
+                this.secureKey = SecureBuffer.copyOf(streamKey);
+            } catch (RuntimeException | Error e) {
+                secureBlock.close();
+                throw e;
+            } finally {
+                Arrays.fill(streamKey, 0, streamKey.length, (byte) 0);
+            }
+            this.block = secureBlock;
+            this.key = null;
+        } else {
+            this.block = null;
+            this.secureKey = null;
+            this.key = streamKey;
+        }
+    }
+
+    private void readFully(byte[] b, int offset, int length) throws IOException {
         int bytesRead = 0;
         do {
-            int n = in.read(nonce, bytesRead, nonce.length - bytesRead);
+            boolean mayGrow = following;
+            int n = in.read(b, offset + bytesRead, length - bytesRead);
             if (n < 0) {
-                throw new EOFException();
+                if (!mayGrow) {
+                    throw new EOFException();
+                }
+                awaitMoreInput();
+                continue;
             }
             bytesRead += n;
-        } while (bytesRead < nonce.length);
+        } while (bytesRead < length);
+    }
+
+    /**
+     * Ends follow mode: once everything already written has been read,
+     * the stream ends as usual.  Call this after the writer is closed.  It
+     * may be called from any thread, including while another is blocked
+     * reading, and does nothing for streams not in follow mode.
+     */
+    public void stopFollowing() {
+        synchronized (followLock) {
+            following = false;
+            followLock.notifyAll();
+        }
+    }
+
+    private void awaitMoreInput() throws IOException {
+        synchronized (followLock) {
+            if (!following) {
+                return;
+            }
+            try {
+                followLock.wait(followIntervalMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while following the stream");
+            }
+        }
+    }
+
+    /**
+     * The cipher this stream is decrypting with.
+     */
+    @NonNull
+    public CipherSuite getCipherSuite() {
+        return suite;
     }
 
     @Override
     public int read() throws IOException {
-        if (bufferIndex != 0) {
+        if (bufferIndex != 0 && block == null) {
             int result = buffer[0] & 0xFF;
             System.arraycopy(buffer, 1, buffer, 0, bufferIndex - 1);
             bufferIndex--;
@@ -92,6 +311,10 @@ public class CryptoInputStream extends FilterInputStream {
             throw new IllegalArgumentException("invalid length + offset");
         }
 
+        if (block != null) {
+            return readFromBlock(output, offset, length);
+        }
+
         int bytesToDeliver = length;
         int currentOffset = offset;
 
@@ -139,6 +362,11 @@ public class CryptoInputStream extends FilterInputStream {
         //       but naive.
 
         while (bytesToDeliver > 0) {
+            // A follower returns what it has rather than wait for more.
+            if (bytesToDeliver != length && followIntervalMillis > 0) {
+                break;
+            }
+
             fillNextBlock();
             if (bufferIndex == 0) {
                 break;
@@ -164,6 +392,33 @@ public class CryptoInputStream extends FilterInputStream {
         return bytesDelivered;
     }
 
+    private int readFromBlock(byte[] output, int offset, int length) throws IOException {
+        int bytesDelivered = 0;
+        while (bytesDelivered < length) {
+            if (bufferIndex == 0) {
+                if (bytesDelivered > 0 && followIntervalMillis > 0) {
+                    break;
+                }
+                fillNextBlock();
+                if (bufferIndex == 0) {
+                    break;
+                }
+            }
+
+            int toCopy = Math.min(length - bytesDelivered, bufferIndex);
+            block.read(blockPosition, output, offset + bytesDelivered, toCopy);
+
+            blockPosition += toCopy;
+            bufferIndex -= toCopy;
+            bytesDelivered += toCopy;
+        }
+
+        if (bytesDelivered == 0 && length > 0) {
+            return -1;
+        }
+        return bytesDelivered;
+    }
+
     private void fillNextBlock() throws IOException {
         if (eof) {
             return;
@@ -173,26 +428,123 @@ public class CryptoInputStream extends FilterInputStream {
             throw new IllegalStateException("Cannot fill next block before the current block has been consumed");
         }
 
+        if (block != null) {
+            block.wipe(0, blockPosition);
+            blockPosition = 0;
+        }
+
         int bytesRead = 0;
-        do {
+        if (tailLength > 0) {
+            System.arraycopy(tail, 0, buffer, 0, tailLength);
+            bytesRead = tailLength;
+            tailLength = 0;
+        }
+
+        while (bytesRead < buffer.length) {
+            // Sampled before reading, so that the last read after
+            // stopFollowing() sees everything the writer wrote.
+            boolean mayGrow = following;
             int n = in.read(buffer, bytesRead, buffer.length - bytesRead);
             if (n < 0) {
-                break;
+                if (!mayGrow) {
+                    eof = true;
+                    break;
+                }
+                if (decryptableLength(bytesRead) > 0) {
+                    break;
+                }
+                awaitMoreInput();
+                continue;
             }
             bytesRead += n;
-        } while (bytesRead != buffer.length);
 
-        if (bytesRead < buffer.length) {
-            eof = true;
+            if (mayGrow && decryptableLength(bytesRead) > 0 && in.available() == 0) {
+                break;
+            }
+        }
+
+        if (!eof && bytesRead < buffer.length) {
+            // Only in follow mode: hold back the partial keystream block.
+            int decryptable = decryptableLength(bytesRead);
+            tailLength = bytesRead - decryptable;
+            System.arraycopy(buffer, decryptable, tail, 0, tailLength);
+            bytesRead = decryptable;
+        }
+
+        if (suite == CipherSuite.AES256GCM) {
+            openSegment(bytesRead);
+            return;
         }
 
         bufferIndex = bytesRead;
 
-        Native.decrypt(key, nonce, counter, buffer, bytesRead);
+        if (block != null) {
+            Native.decryptDirect(secureKey.buffer(), nonce, counter, buffer, block.buffer(), bytesRead, hashState);
+            if (eof && hashState != null) {
+                verifyDigest();
+            }
+        } else if (hashState != null) {
+            Native.decryptAndHash(key, nonce, counter, buffer, bytesRead, hashState);
+            if (eof) {
+                verifyDigest();
+            }
+        } else {
+            Native.decrypt(key, nonce, counter, buffer, bytesRead);
+        }
 
         counter += bytesRead / 64;
     }
 
+    /**
+     * How much of {@code length} bytes of ciphertext can be decrypted
+     * before the end of the stream is known.
+     */
+    private int decryptableLength(int length) {
+        if (suite == CipherSuite.AES256GCM) {
+            return length == buffer.length ? length : 0;
+        }
+        return length - length % 64;
+    }
+
+    private void openSegment(int bytesRead) throws IOException {
+        // The final segment always carries a tag, even when it is otherwise
+        // empty, so running out of data at a segment boundary means the
+        // stream was truncated.
+        if (bytesRead < Native.AEAD_TAG_SIZE) {
+            throw new IOException("Stream is truncated");
+        }
+
+        boolean verified = block != null
+                ? Native.openSegmentDirect(secureKey.buffer(), counter, eof, buffer, bytesRead, block.buffer(), hashState)
+                : Native.openSegment(key, counter, eof, buffer, bytesRead, hashState);
+        if (!verified) {
+            throw new IOException("Stream failed authentication");
+        }
+
+        bufferIndex = bytesRead - Native.AEAD_TAG_SIZE;
+        counter++;
+
+        if (eof && hashState != null) {
+            verifyDigest();
+        }
+    }
+
+    private void verifyDigest() throws IOException {
+        byte[] actual = new byte[Native.DIGEST_SIZE];
+        Native.hashFinal(hashState, actual);
+        Arrays.fill(hashState, 0, hashState.length, (byte) 0);
+
+        if (!MessageDigest.isEqual(actual, expectedDigest)) {
+            bufferIndex = 0;
+            Arrays.fill(buffer, 0, buffer.length, (byte) 0);
+            if (block != null) {
+                block.wipe(0, block.size());
+                blockPosition = 0;
+            }
+            throw new IOException("Plaintext digest mismatch");
+        }
+    }
+
     @Override
     public boolean markSupported() {
         return false;
@@ -221,13 +573,9 @@ public class CryptoInputStream extends FilterInputStream {
         if (bufferIndex != 0) {
             if (bufferIndex < toSkip) {
                 toSkip -= bufferIndex;
-                bufferIndex = 0;
-                Arrays.fill(buffer, 0, buffer.length, (byte) 0);
+                discard(bufferIndex);
             } else {
-                System.arraycopy(buffer, toSkip, buffer, 0, bufferIndex - toSkip);
-                bufferIndex -= toSkip;
-                Arrays.fill(buffer, bufferIndex, buffer.length, (byte) 0);
-
+                discard(toSkip);
                 return toSkip;
             }
         }
@@ -236,8 +584,13 @@ public class CryptoInputStream extends FilterInputStream {
             return n - toSkip;
         }
 
-        final int blocksToSkip = toSkip / buffer.length;
-        if (blocksToSkip > 0) {
+        // Whole blocks can only be skipped without decrypting them when
+        // nothing needs to see the plaintext, and when the input will not
+        // grow; skipping past the current end of a file succeeds.
+        final int blocksToSkip = hashState == null && followIntervalMillis == 0 ? toSkip / Native.BLOCK_SIZE : 0;
+        if (blocksToSkip > 0 && suite == CipherSuite.AES256GCM) {
+            toSkip -= skipSegments(blocksToSkip);
+        } else if (blocksToSkip > 0) {
             final int blocksToSkipInBytes = blocksToSkip * buffer.length;
             int skipped = 0;
             while (skipped < blocksToSkipInBytes) {
@@ -247,19 +600,17 @@ public class CryptoInputStream extends FilterInputStream {
                     break;
                 }
                 skipped += s;
-                toSkip -= s;
             }
 
             counter += skipped / 64;
+            toSkip -= skipped;
         }
 
-        if (toSkip > 0 && !eof) {
+        while (toSkip > 0 && !eof) {
             fillNextBlock();
             int bytesToDiscard = Math.min(bufferIndex, toSkip);
             if (bytesToDiscard > 0) {
-                System.arraycopy(buffer, bytesToDiscard, buffer, 0, bufferIndex - bytesToDiscard);
-                bufferIndex -= bytesToDiscard;
-                Arrays.fill(buffer, bufferIndex, buffer.length, (byte) 0);
+                discard(bytesToDiscard);
                 toSkip -= bytesToDiscard;
             }
         }
@@ -267,6 +618,62 @@ public class CryptoInputStream extends FilterInputStream {
         return n - toSkip;
     }
 
+    /**
+     * Skips up to {@code count} whole AES-256-GCM segments.  Segments are
+     * read rather than skipped, since only a short read shows where the
+     * stream ends: full segments are passed over without being opened, but
+     * the final segment is always opened, so that a truncated or tampered
+     * stream fails here just as it would when read.  Whatever the final
+     * segment holds is left buffered.
+     *
+     * @return the number of plaintext bytes skipped.
+     */
+    private int skipSegments(int count) throws IOException {
+        if (block != null) {
+            block.wipe(0, blockPosition);
+            blockPosition = 0;
+        }
+
+        int skipped = 0;
+        for (int i = 0; i < count; i++) {
+            int bytesRead = 0;
+            while (bytesRead < buffer.length) {
+                int n = in.read(buffer, bytesRead, buffer.length - bytesRead);
+                if (n < 0) {
+                    eof = true;
+                    break;
+                }
+                bytesRead += n;
+            }
+
+            if (eof) {
+                openSegment(bytesRead);
+                int bytesToDiscard = Math.min(bufferIndex, Native.BLOCK_SIZE);
+                discard(bytesToDiscard);
+                return skipped + bytesToDiscard;
+            }
+
+            counter++;
+            skipped += Native.BLOCK_SIZE;
+        }
+        return skipped;
+    }
+
+    /**
+     * Drops the first {@code count} buffered plaintext bytes.
+     */
+    private void discard(int count) {
+        if (block != null) {
+            blockPosition += count;
+            bufferIndex -= count;
+            return;
+        }
+
+        System.arraycopy(buffer, count, buffer, 0, bufferIndex - count);
+        bufferIndex -= count;
+        Arrays.fill(buffer, bufferIndex, buffer.length, (byte) 0);
+    }
+
     @Override
     public void close() throws IOException {
         if (closed) {
@@ -276,8 +683,24 @@ public class CryptoInputStream extends FilterInputStream {
 
         Arrays.fill(buffer, 0, buffer.length, (byte) 0);
         Arrays.fill(nonce, 0, nonce.length, (byte) 0);
-        Arrays.fill(key, 0, key.length, (byte) 0);
+        if (tail != null) {
+            Arrays.fill(tail, 0, tail.length, (byte) 0);
+            tailLength = 0;
+        }
+        if (key != null) {
+            Arrays.fill(key, 0, key.length, (byte) 0);
+        }
+        if (hashState != null) {
+            Arrays.fill(hashState, 0, hashState.length, (byte) 0);
+        }
+        if (secureKey != null) {
+            secureKey.close();
+        }
+        if (block != null) {
+            block.close();
+        }
         bufferIndex = 0;
+        blockPosition = 0;
         counter = 0;
 
         super.close();
@@ -15,40 +15,261 @@
 package com.bendb.cryptostream;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.Arrays;
 
 /**
  * An OutputStream decorator that encrypts bytes using a stream cipher
  * and writes the resulting ciphertext to the underlying stream.
+ *
+ * <p>Streams created without a {@link CipherSuite} are headerless
+ * XChaCha20, readable by every version of {@link CryptoInputStream}.
+ * Streams created with one start with a small versioned header naming it.
+ *
+ * <p>A stream created with {@code secureMemory} keeps its key and plaintext
+ * block in guarded off-heap memory instead of Java arrays; see
+ * {@link #CryptoOutputStream(OutputStream, byte[], CipherSuite, boolean, boolean)}.
  */
 public class CryptoOutputStream extends FilterOutputStream {
 
+    private final CipherSuite suite;
+    @Nullable
     private final byte[] key;
-    private final byte[] nonce = Native.generateNonce();
+    private final byte[] nonce = new byte[Native.NONCE_SIZE];
 
-    private final byte[] buffer = new byte[Native.blockSize()];
+    // Holds one segment: BLOCK_SIZE bytes of plaintext, plus room for a tag
+    // for AEAD suites.
+    private final byte[] buffer;
     private int bufferIndex = 0;
+
+    // For XChaCha20, the keystream block counter; for AES-256-GCM, the segment index.
     private long counter = 0;
 
+    // When appending mid-block, the buffer still starts on a keystream block
+    // boundary; the first bufferStart bytes are padding that is never written.
+    private int bufferStart = 0;
+
+    // With secure memory, key is null, plaintext is gathered in block, and
+    // buffer only ever holds ciphertext.
+    @Nullable
+    private final SecureBuffer secureKey;
+    @Nullable
+    private final SecureBuffer block;
+
     private final byte[] singleByte = new byte[1];
 
+    @Nullable
+    private final byte[] hashState;
+
     private boolean eof = false;
     private boolean closed = false;
 
     public CryptoOutputStream(@NonNull OutputStream out, @NonNull byte[] key) throws IOException {
+        this(out, key, false);
+    }
+
+    /**
+     * Creates a stream that, when {@code computeDigest} is true, also computes
+     * a BLAKE2b digest of the plaintext as it is encrypted.  The digest is
+     * returned by {@link #flushFinalBlock()}, and does not depend on the key
+     * or nonce.
+     */
+    public CryptoOutputStream(@NonNull OutputStream out, @NonNull byte[] key, boolean computeDigest) throws IOException {
+        this(out, key, null, computeDigest);
+    }
+
+    /**
+     * Creates a stream that writes a header naming {@code suite}, and
+     * encrypts with it.
+     */
+    public CryptoOutputStream(@NonNull OutputStream out, @NonNull byte[] key, @NonNull CipherSuite suite) throws IOException {
+        this(out, key, suite, false);
+    }
+
+    /**
+     * Creates a stream that encrypts with {@code suite}, and optionally
+     * computes a plaintext digest.  A null suite writes a headerless
+     * XChaCha20 stream.
+     *
+     * @throws IllegalArgumentException if {@code suite} is not available on
+     *         this device.
+     */
+    public CryptoOutputStream(
+            @NonNull OutputStream out,
+            @NonNull byte[] key,
+            @Nullable CipherSuite suite,
+            boolean computeDigest) throws IOException {
+        this(out, key, suite, computeDigest, false);
+    }
+
+    /**
+     * Creates a stream that, when {@code secureMemory} is true, keeps the key
+     * and the plaintext block in memory from {@code sodium_malloc} rather
+     * than in Java arrays.  That memory is never moved or copied by the
+     * garbage collector, is locked so that it is not swapped out, and sits
+     * between guard pages.  Only ciphertext passes through the Java heap,
+     * so large writes are gathered block by block instead of being
+     * encrypted in one call.  The exception is {@code computeDigest}: the
+     * BLAKE2b state is a Java array, and it buffers up to 256 bytes of
+     * recent plaintext between blocks until {@link #flushFinalBlock()}
+     * wipes it.
+     *
+     * <p>The block is wiped once after each block is written, and freed by
+     * {@link #flushFinalBlock()}.  Such streams must always be closed; their
+     * memory is not reclaimed by the garbage collector.
+     */
+    public CryptoOutputStream(
+            @NonNull OutputStream out,
+            @NonNull byte[] key,
+            @Nullable CipherSuite suite,
+            boolean computeDigest,
+            boolean secureMemory) throws IOException {
+        super(out);
+
+        if (key.length != Native.KEY_SIZE) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+
+        if (suite != null && !suite.isAvailable()) {
+            throw new IllegalArgumentException(suite + " is not available on this device");
+        }
+
+        this.suite = suite != null ? suite : CipherSuite.XCHACHA20;
+
+        Native.generateNonce(nonce);
+
+        byte[] streamKey;
+        if (this.suite == CipherSuite.AES256GCM) {
+            streamKey = new byte[Native.KEY_SIZE];
+            Native.deriveKey(key, nonce, streamKey);
+            this.buffer = new byte[Native.BLOCK_SIZE + Native.AEAD_TAG_SIZE];
+        } else {
+            streamKey = key.clone();
+            this.buffer = new byte[Native.BLOCK_SIZE];
+        }
+
+        // The header is written before any secure memory is allocated, so
+        // that a failing stream cannot leak it; it is never reclaimed by
+        // the collector.
+        try {
+            if (suite != null) {
+                StreamHeader.writePrefix(out, suite);
+            }
+            out.write(nonce);
+        } catch (IOException | RuntimeException e) {
+            Arrays.fill(streamKey, 0, streamKey.length, (byte) 0);
+            throw e;
+        }
+
+        if (secureMemory) {
+            SecureBuffer secureBlock = new SecureBuffer(Native.BLOCK_SIZE);
+            try {
+                this.secureKey = SecureBuffer.copyOf(streamKey);
+            } catch (RuntimeException | Error e) {
+                secureBlock.close();
+                throw e;
+            } finally {
+                Arrays.fill(streamKey, 0, streamKey.length, (byte) 0);
+            }
+            this.block = secureBlock;
+            this.key = null;
+        } else {
+            this.block = null;
+            this.secureKey = null;
+            this.key = streamKey;
+        }
+
+        if (computeDigest) {
+            hashState = new byte[Native.HASH_STATE_SIZE];
+            Native.hashInit(hashState);
+        } else {
+            hashState = null;
+        }
+    }
+
+    /**
+     * Creates a stream that continues an existing encrypted stream, rather
+     * than starting a new one.
+     *
+     * <p>{@code nonce} is the nonce that prefixes the existing stream, and
+     * {@code position} is the number of ciphertext bytes following it.
+     * Nothing is written to {@code out} until data is; it must already be
+     * positioned at the end of the existing ciphertext.
+     *
+     * @see #append(File, byte[])
+     */
+    public CryptoOutputStream(
+            @NonNull OutputStream out,
+            @NonNull byte[] key,
+            @NonNull byte[] nonce,
+            long position) {
         super(out);
 
-        if (key.length != Native.keySize()) {
+        if (key.length != Native.KEY_SIZE) {
             throw new IllegalArgumentException("Invalid key");
         }
 
+        if (nonce.length != Native.NONCE_SIZE) {
+            throw new IllegalArgumentException("Invalid nonce");
+        }
+
+        if (position < 0) {
+            throw new IllegalArgumentException("position cannot be negative");
+        }
+
+        this.suite = CipherSuite.XCHACHA20;
         this.key = key.clone();
+        this.secureKey = null;
+        this.block = null;
+        System.arraycopy(nonce, 0, this.nonce, 0, nonce.length);
+        this.buffer = new byte[Native.BLOCK_SIZE];
+        this.hashState = null;
+
+        this.counter = position / 64;
+        this.bufferStart = (int) (position % 64);
+        this.bufferIndex = bufferStart;
+    }
+
+    /**
+     * Opens an existing encrypted file for appending.  Only the nonce is
+     * read; the cost of appending is proportional to the new data, not to
+     * the size of the file.
+     *
+     * <p>Only XChaCha20 streams can be appended to; AES-256-GCM streams end
+     * with a sealed final segment.
+     */
+    @NonNull
+    public static CryptoOutputStream append(@NonNull File file, @NonNull byte[] key) throws IOException {
+        byte[] nonce = new byte[Native.NONCE_SIZE];
+        long position;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.readFully(nonce);
+
+            CipherSuite suite = StreamHeader.parsePrefix(nonce);
+            if (suite == CipherSuite.AES256GCM) {
+                throw new IOException("Cannot append to an AES-256-GCM stream");
+            } else if (suite != null) {
+                raf.seek(StreamHeader.PREFIX_SIZE);
+                raf.readFully(nonce);
+            }
 
-        out.write(nonce);
+            position = raf.length() - raf.getFilePointer();
+        }
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            return new CryptoOutputStream(out, key, nonce, position);
+        } catch (RuntimeException e) {
+            out.close();
+            throw e;
+        }
     }
 
     @Override
@@ -67,35 +288,46 @@ public class CryptoOutputStream extends FilterOutputStream {
         checkNotClosed();
         checkNotEOF();
 
+        if (block != null) {
+            writeToBlock(b, off, len);
+            return;
+        }
+
         int currentOffset = off;
         int bytesRemaining = len;
 
         if (bufferIndex != 0) {
-            if (bufferIndex + len < buffer.length) {
+            if (bufferIndex + len < Native.BLOCK_SIZE) {
                 System.arraycopy(b, currentOffset, buffer, bufferIndex, len);
                 bufferIndex += len;
                 return;
             } else {
-                final int toCopy = buffer.length - bufferIndex;
+                final int toCopy = Native.BLOCK_SIZE - bufferIndex;
                 System.arraycopy(b, currentOffset, buffer, bufferIndex, toCopy);
 
-                Native.encrypt(key, nonce, counter, buffer, buffer.length);
-                counter += buffer.length / 64;
-                out.write(buffer);
+                writeBufferedBlock();
 
                 currentOffset += toCopy;
                 bytesRemaining -= toCopy;
-                bufferIndex = 0;
             }
         }
 
-        final int blocksToWrite = bytesRemaining / buffer.length;
-        if (blocksToWrite > 0) {
-            final int blocksToWriteInBytes = blocksToWrite * buffer.length;
+        final int blocksToWrite = bytesRemaining / Native.BLOCK_SIZE;
+        if (blocksToWrite > 0 && suite == CipherSuite.AES256GCM) {
+            // Every segment carries its own tag, so they are sealed one at a time.
+            for (int i = 0; i < blocksToWrite; i++) {
+                System.arraycopy(b, currentOffset, buffer, 0, Native.BLOCK_SIZE);
+                writeBufferedBlock();
+
+                bytesRemaining -= Native.BLOCK_SIZE;
+                currentOffset += Native.BLOCK_SIZE;
+            }
+        } else if (blocksToWrite > 0) {
+            final int blocksToWriteInBytes = blocksToWrite * Native.BLOCK_SIZE;
 
             final byte[] temp = new byte[blocksToWriteInBytes];
             System.arraycopy(b, currentOffset, temp, 0, blocksToWriteInBytes);
-            Native.encrypt(key, nonce, counter, temp, blocksToWriteInBytes);
+            encrypt(temp, blocksToWriteInBytes);
             counter += blocksToWriteInBytes / 64;
             out.write(temp);
 
@@ -112,29 +344,120 @@ public class CryptoOutputStream extends FilterOutputStream {
         }
     }
 
+    private void writeToBlock(byte[] b, int off, int len) throws IOException {
+        int bytesWritten = 0;
+        while (bytesWritten < len) {
+            int toCopy = Math.min(len - bytesWritten, Native.BLOCK_SIZE - bufferIndex);
+            block.write(bufferIndex, b, off + bytesWritten, toCopy);
+            bufferIndex += toCopy;
+            bytesWritten += toCopy;
+
+            if (bufferIndex == Native.BLOCK_SIZE) {
+                writeBufferedBlock();
+            }
+        }
+    }
+
+    private void writeBufferedBlock() throws IOException {
+        if (suite == CipherSuite.AES256GCM) {
+            seal(false, Native.BLOCK_SIZE);
+            counter++;
+            out.write(buffer, 0, buffer.length);
+        } else {
+            encrypt(buffer, Native.BLOCK_SIZE);
+            counter += Native.BLOCK_SIZE / 64;
+            out.write(buffer, bufferStart, Native.BLOCK_SIZE - bufferStart);
+        }
+
+        if (block != null) {
+            block.wipe(0, Native.BLOCK_SIZE);
+        }
+
+        bufferIndex = 0;
+        bufferStart = 0;
+    }
+
+    /**
+     * Encrypts and writes every complete 64-byte keystream block of
+     * buffered plaintext, then flushes the underlying stream, so that a
+     * {@link CryptoInputStream} following the output can decrypt
+     * everything but the last partial block.  The ciphertext is exactly
+     * what it would have been without the flush.
+     *
+     * <p>AES-256-GCM segments can only be sealed whole, so for those
+     * streams this only flushes the underlying stream.  After the final
+     * block has been written this does nothing.
+     */
     @Override
     public void flush() throws IOException {
-        // noop
+        if (closed || eof) {
+            return;
+        }
+
+        if (suite != CipherSuite.AES256GCM) {
+            int whole = bufferIndex - bufferIndex % 64;
+            if (whole > bufferStart) {
+                encrypt(buffer, whole);
+                out.write(buffer, bufferStart, whole - bufferStart);
+                counter += whole / 64;
+
+                // What is left starts on a keystream block boundary.
+                int remaining = bufferIndex - whole;
+                if (block != null) {
+                    block.compact(whole, remaining);
+                } else {
+                    System.arraycopy(buffer, whole, buffer, 0, remaining);
+                }
+                Arrays.fill(buffer, remaining, buffer.length, (byte) 0);
+                bufferIndex = remaining;
+                bufferStart = 0;
+            }
+        }
+
+        out.flush();
     }
 
-    public void flushFinalBlock() throws IOException {
+    /**
+     * Encrypts and writes any buffered plaintext; no further writes are
+     * permitted afterwards.
+     *
+     * @return the plaintext digest if this stream was created with
+     *         {@code computeDigest}, otherwise null.
+     */
+    @Nullable
+    public byte[] flushFinalBlock() throws IOException {
         checkNotClosed();
         checkNotEOF();
 
         eof = true;
 
-        if (bufferIndex > 0) {
-            Native.encrypt(key, nonce, counter, buffer, bufferIndex);
-            out.write(buffer, 0, bufferIndex);
+        if (suite == CipherSuite.AES256GCM) {
+            // The final segment is always written, even if empty, so that
+            // readers can tell a complete stream from a truncated one.
+            seal(true, bufferIndex);
+            out.write(buffer, 0, bufferIndex + Native.AEAD_TAG_SIZE);
+        } else if (bufferIndex > bufferStart) {
+            encrypt(buffer, bufferIndex);
+            out.write(buffer, bufferStart, bufferIndex - bufferStart);
         }
 
         out.flush();
 
+        byte[] digest = null;
+        if (hashState != null) {
+            digest = new byte[Native.DIGEST_SIZE];
+            Native.hashFinal(hashState, digest);
+            Arrays.fill(hashState, 0, hashState.length, (byte) 0);
+        }
+
         counter = 0;
         bufferIndex = 0;
+        bufferStart = 0;
         Arrays.fill(buffer, 0, buffer.length, (byte) 0);
         Arrays.fill(nonce, 0, nonce.length, (byte) 0);
-        Arrays.fill(key, 0, key.length, (byte) 0);
+        wipeKeyAndBlock();
+
+        return digest;
     }
 
     @Override
@@ -152,6 +475,73 @@ public class CryptoOutputStream extends FilterOutputStream {
         super.close();
     }
 
+    /**
+     * Abandons the stream: buffered plaintext is discarded and key material
+     * wiped without writing anything further, then the underlying stream is
+     * closed.  Finishing a stream that failed part-way would make it look
+     * complete, so callers that hit an error upstream use this instead of
+     * {@link #close()}.
+     */
+    void abort() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        eof = true;
+        closed = true;
+
+        counter = 0;
+        bufferIndex = 0;
+        bufferStart = 0;
+        Arrays.fill(buffer, 0, buffer.length, (byte) 0);
+        Arrays.fill(nonce, 0, nonce.length, (byte) 0);
+        wipeKeyAndBlock();
+        if (hashState != null) {
+            Arrays.fill(hashState, 0, hashState.length, (byte) 0);
+        }
+
+        out.close();
+    }
+
+    private void wipeKeyAndBlock() {
+        if (key != null) {
+            Arrays.fill(key, 0, key.length, (byte) 0);
+        }
+        if (secureKey != null) {
+            secureKey.close();
+        }
+        if (block != null) {
+            block.close();
+        }
+    }
+
+    /**
+     * Seals the first {@code length} bytes of plaintext into {@code buffer},
+     * followed by the tag.
+     */
+    private void seal(boolean last, int length) {
+        if (block != null) {
+            Native.sealSegmentDirect(secureKey.buffer(), counter, last, block.buffer(), length, buffer, hashState);
+        } else {
+            Native.sealSegment(key, counter, last, buffer, length, hashState);
+        }
+    }
+
+    /**
+     * Encrypts {@code length} bytes of plaintext into {@code message}.  With
+     * secure memory the plaintext is read from the block and {@code message}
+     * is always {@code buffer}; otherwise it is encrypted in place.
+     */
+    private void encrypt(byte[] message, int length) {
+        if (block != null) {
+            Native.encryptDirect(secureKey.buffer(), nonce, counter, block.buffer(), message, length, hashState);
+        } else if (hashState != null) {
+            Native.encryptAndHash(key, nonce, counter, message, length, hashState);
+        } else {
+            Native.encrypt(key, nonce, counter, message, length);
+        }
+    }
+
     private void checkNotClosed() {
         if (closed) {
             throw new IllegalStateException("Stream closed.");
@@ -0,0 +1,249 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the decrypted contents of an encrypted stream as a sequence of
+ * {@link ByteBuffer} chunks.
+ *
+ * <p>Nothing is read from the source until the subscriber requests it, and
+ * then only as many chunks as were requested, so at most one chunk is in
+ * flight per outstanding request.  Reads and {@code onNext} calls run as
+ * short tasks on the given executor; no thread is held while there is no
+ * demand, so many transfers can share a small pool.
+ *
+ * <p>Each emitted buffer is freshly allocated and owned by the subscriber.
+ * A publisher supports a single subscriber, and closes the source when the
+ * subscription completes, fails or is cancelled.
+ */
+@RequiresApi(30)
+public final class CryptoPublisher implements Flow.Publisher<ByteBuffer> {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    // The most chunks emitted before yielding the executor thread, so that
+    // one subscriber with unbounded demand cannot starve the others.
+    private static final int MAX_CHUNKS_PER_RUN = 16;
+
+    private final InputStream source;
+    private final byte[] key;
+    private final Executor executor;
+    private final int chunkSize;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    public CryptoPublisher(@NonNull InputStream source, @NonNull byte[] key, @NonNull Executor executor) {
+        this(source, key, executor, DEFAULT_CHUNK_SIZE);
+    }
+
+    public CryptoPublisher(
+            @NonNull InputStream source,
+            @NonNull byte[] key,
+            @NonNull Executor executor,
+            int chunkSize) {
+        if (key.length != Native.KEY_SIZE) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+
+        this.source = source;
+        this.key = key.clone();
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    // noop
+                }
+
+                @Override
+                public void cancel() {
+                    // noop
+                }
+            });
+            subscriber.onError(new IllegalStateException("CryptoPublisher supports only one subscriber"));
+            return;
+        }
+
+        subscriber.onSubscribe(new ReadSubscription(subscriber));
+    }
+
+    private final class ReadSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+
+        private final AtomicLong demand = new AtomicLong(0);
+        private final AtomicInteger wip = new AtomicInteger(0);
+        private volatile boolean cancelled = false;
+        private volatile Throwable requestError = null;
+
+        // Only touched from run(), which never executes concurrently with itself.
+        private CryptoInputStream in = null;
+        private boolean done = false;
+
+        ReadSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                requestError = new IllegalArgumentException("Requested " + n + " items; must be positive");
+            } else {
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                execute();
+            }
+        }
+
+        private void execute() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                finish();
+                subscriber.onError(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                if (done) {
+                    return;
+                }
+
+                if (cancelled) {
+                    finish();
+                    return;
+                }
+
+                Throwable error = requestError;
+                if (error != null) {
+                    finish();
+                    subscriber.onError(error);
+                    return;
+                }
+
+                int emitted = 0;
+                while (demand.get() > 0 && !cancelled) {
+                    if (emitted == MAX_CHUNKS_PER_RUN) {
+                        // wip is still non-zero, so nothing else will schedule us.
+                        execute();
+                        return;
+                    }
+
+                    ByteBuffer chunk;
+                    try {
+                        chunk = readChunk();
+                    } catch (IOException | RuntimeException e) {
+                        finish();
+                        subscriber.onError(e);
+                        return;
+                    }
+
+                    if (chunk == null) {
+                        finish();
+                        subscriber.onComplete();
+                        return;
+                    }
+
+                    if (demand.get() != Long.MAX_VALUE) {
+                        demand.decrementAndGet();
+                    }
+                    subscriber.onNext(chunk);
+                    emitted++;
+                }
+
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private ByteBuffer readChunk() throws IOException {
+            if (in == null) {
+                in = new CryptoInputStream(source, key);
+                Arrays.fill(key, 0, key.length, (byte) 0);
+            }
+
+            byte[] chunk = new byte[chunkSize];
+            int bytesRead = 0;
+            while (bytesRead < chunk.length) {
+                int n = in.read(chunk, bytesRead, chunk.length - bytesRead);
+                if (n == -1) {
+                    break;
+                }
+                bytesRead += n;
+            }
+
+            if (bytesRead == 0) {
+                return null;
+            }
+            return ByteBuffer.wrap(chunk, 0, bytesRead).slice();
+        }
+
+        private void finish() {
+            done = true;
+            Arrays.fill(key, 0, key.length, (byte) 0);
+            try {
+                if (in != null) {
+                    in.close();
+                } else {
+                    source.close();
+                }
+            } catch (IOException ignored) {
+                // The subscriber has its answer already; a failed close
+                // changes nothing for it.
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * An encrypted file that supports reads and writes at arbitrary offsets.
+ *
+ * <p>The plaintext is divided into fixed-size chunks, and each chunk is
+ * encrypted under its own random nonce, stored in front of it.  Whenever a
+ * chunk is rewritten it gets a fresh nonce, so no keystream is ever reused
+ * even though the same plaintext position may be written many times.
+ * Patching a few bytes therefore costs one chunk read and one chunk write,
+ * regardless of the size of the file.
+ *
+ * <p>This is a different format from {@link CryptoOutputStream}; files
+ * written by one cannot be read by the other.  The layout is:
+ * <pre>
+ *   int32 MAGIC
+ *   int32 chunkSize
+ *   (nonce, ciphertext)*   the last chunk's ciphertext may be short
+ * </pre>
+ *
+ * <p>Like the stream classes, this provides confidentiality only; it does
+ * not detect tampering.  Instances are not thread-safe.
+ */
+public class CryptoRandomAccessFile implements Closeable {
+
+    static final int MAGIC = 0x43535241; // "CSRA"
+    static final int HEADER_SIZE = 8;
+
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    private final RandomAccessFile file;
+    private final boolean writable;
+
+    private final byte[] key;
+    private final byte[] nonce = new byte[Native.NONCE_SIZE];
+
+    private final int chunkSize;
+    private final byte[] chunk;
+    private final byte[] ciphertext;
+    private long loadedChunk = -1;
+    private int loadedLength = 0;
+    private boolean dirty = false;
+
+    private long length;
+    private long pointer = 0;
+
+    private final byte[] singleByte = new byte[1];
+
+    private boolean closed = false;
+
+    /**
+     * Opens {@code file} with the given mode, which is either {@code "r"} or
+     * {@code "rw"} as for {@link RandomAccessFile}.  An empty or missing file
+     * opened for writing is initialized with {@link #DEFAULT_CHUNK_SIZE}.
+     */
+    public CryptoRandomAccessFile(@NonNull File file, @NonNull String mode, @NonNull byte[] key) throws IOException {
+        this(file, mode, key, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Opens {@code file} with the given mode.  {@code chunkSize} is only used
+     * when a new file is created; existing files keep the chunk size they
+     * were created with.
+     */
+    public CryptoRandomAccessFile(
+            @NonNull File file,
+            @NonNull String mode,
+            @NonNull byte[] key,
+            int chunkSize) throws IOException {
+        if (key.length != Native.KEY_SIZE) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+
+        if (!"r".equals(mode) && !"rw".equals(mode)) {
+            throw new IllegalArgumentException("mode must be \"r\" or \"rw\"");
+        }
+
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size");
+        }
+
+        this.file = new RandomAccessFile(file, mode);
+        this.writable = "rw".equals(mode);
+        this.key = key.clone();
+
+        try {
+            if (this.file.length() == 0 && writable) {
+                this.file.writeInt(MAGIC);
+                this.file.writeInt(chunkSize);
+            } else {
+                if (this.file.length() < HEADER_SIZE || this.file.readInt() != MAGIC) {
+                    throw new IOException("Not an encrypted random-access file");
+                }
+                chunkSize = this.file.readInt();
+                if (chunkSize <= 0) {
+                    throw new IOException("Invalid chunk size");
+                }
+            }
+
+            this.chunkSize = chunkSize;
+
+            long stride = Native.NONCE_SIZE + (long) chunkSize;
+            long dataLength = this.file.length() - HEADER_SIZE;
+            long remainder = dataLength % stride;
+            if (remainder != 0 && remainder <= Native.NONCE_SIZE) {
+                throw new IOException("Truncated chunk");
+            }
+            this.length = (dataLength / stride) * chunkSize + Math.max(0, remainder - Native.NONCE_SIZE);
+        } catch (IOException | RuntimeException e) {
+            this.file.close();
+            throw e;
+        }
+
+        this.chunk = new byte[this.chunkSize];
+        this.ciphertext = new byte[this.chunkSize];
+    }
+
+    /**
+     * The number of plaintext bytes in the file.
+     */
+    public long length() {
+        checkNotClosed();
+        return length;
+    }
+
+    public long getFilePointer() {
+        checkNotClosed();
+        return pointer;
+    }
+
+    /**
+     * Sets the plaintext position of the next read or write.  Seeking past
+     * the end is allowed; a subsequent write fills the gap with zeros.
+     */
+    public void seek(long position) {
+        checkNotClosed();
+
+        if (position < 0) {
+            throw new IllegalArgumentException("position cannot be negative");
+        }
+
+        pointer = position;
+    }
+
+    public int read() throws IOException {
+        if (read(singleByte, 0, 1) == -1) {
+            return -1;
+        }
+        return singleByte[0] & 0xFF;
+    }
+
+    public int read(@NonNull byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    public int read(@NonNull byte[] output, final int offset, final int length) throws IOException {
+        checkNotClosed();
+        checkBounds(output, offset, length);
+
+        if (pointer >= this.length) {
+            return length == 0 ? 0 : -1;
+        }
+
+        int bytesDelivered = 0;
+        while (bytesDelivered < length && pointer < this.length) {
+            loadChunk(pointer / chunkSize);
+
+            int chunkPosition = (int) (pointer % chunkSize);
+            int toCopy = Math.min(length - bytesDelivered, loadedLength - chunkPosition);
+            System.arraycopy(chunk, chunkPosition, output, offset + bytesDelivered, toCopy);
+
+            bytesDelivered += toCopy;
+            pointer += toCopy;
+        }
+
+        return bytesDelivered;
+    }
+
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    public void write(@NonNull byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    public void write(@NonNull byte[] input, final int offset, final int length) throws IOException {
+        checkNotClosed();
+        checkBounds(input, offset, length);
+
+        if (!writable) {
+            throw new IllegalStateException("File is read-only");
+        }
+
+        if (pointer > this.length) {
+            long target = pointer;
+            pointer = this.length;
+            while (pointer < target) {
+                writeChunkRange(null, 0, (int) Math.min(target - pointer, chunkSize - pointer % chunkSize));
+            }
+        }
+
+        int bytesWritten = 0;
+        while (bytesWritten < length) {
+            int toCopy = Math.min(length - bytesWritten, chunkSize - (int) (pointer % chunkSize));
+            writeChunkRange(input, offset + bytesWritten, toCopy);
+            bytesWritten += toCopy;
+        }
+    }
+
+    /**
+     * Copies {@code count} bytes into the chunk at {@code pointer}, or zeros
+     * if {@code input} is null.  The range must not cross a chunk boundary.
+     */
+    private void writeChunkRange(byte[] input, int offset, int count) throws IOException {
+        loadChunk(pointer / chunkSize);
+
+        int chunkPosition = (int) (pointer % chunkSize);
+        if (input != null) {
+            System.arraycopy(input, offset, chunk, chunkPosition, count);
+        } else {
+            Arrays.fill(chunk, chunkPosition, chunkPosition + count, (byte) 0);
+        }
+
+        dirty = true;
+        loadedLength = Math.max(loadedLength, chunkPosition + count);
+        pointer += count;
+        length = Math.max(length, loadedChunk * chunkSize + loadedLength);
+    }
+
+    private void loadChunk(long index) throws IOException {
+        if (index == loadedChunk) {
+            return;
+        }
+
+        flush();
+
+        Arrays.fill(chunk, 0, loadedLength, (byte) 0);
+        loadedChunk = -1;
+        loadedLength = (int) Math.max(0, Math.min(chunkSize, length - index * chunkSize));
+
+        if (loadedLength > 0) {
+            file.seek(chunkOffset(index));
+            file.readFully(nonce);
+            file.readFully(chunk, 0, loadedLength);
+            Native.decrypt(key, nonce, 0, chunk, loadedLength);
+        }
+
+        loadedChunk = index;
+    }
+
+    /**
+     * Encrypts and writes the current chunk, if it has been modified.  Each
+     * write uses a fresh nonce.
+     */
+    public void flush() throws IOException {
+        checkNotClosed();
+
+        if (!dirty) {
+            return;
+        }
+
+        Native.generateNonce(nonce);
+        System.arraycopy(chunk, 0, ciphertext, 0, loadedLength);
+        Native.encrypt(key, nonce, 0, ciphertext, loadedLength);
+
+        file.seek(chunkOffset(loadedChunk));
+        file.write(nonce);
+        file.write(ciphertext, 0, loadedLength);
+
+        Arrays.fill(ciphertext, 0, loadedLength, (byte) 0);
+        dirty = false;
+    }
+
+    private long chunkOffset(long index) {
+        return HEADER_SIZE + index * (Native.NONCE_SIZE + (long) chunkSize);
+    }
+
+    private static void checkBounds(byte[] array, int offset, int length) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset cannot be negative");
+        }
+
+        if (length < 0) {
+            throw new IllegalArgumentException("length cannot be negative");
+        }
+
+        if (length + offset > array.length) {
+            throw new IllegalArgumentException("invalid length + offset");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            flush();
+        } finally {
+            closed = true;
+
+            Arrays.fill(chunk, 0, chunk.length, (byte) 0);
+            Arrays.fill(ciphertext, 0, ciphertext.length, (byte) 0);
+            Arrays.fill(nonce, 0, nonce.length, (byte) 0);
+            Arrays.fill(key, 0, key.length, (byte) 0);
+            loadedChunk = -1;
+            loadedLength = 0;
+
+            file.close();
+        }
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("File closed");
+        }
+    }
+}
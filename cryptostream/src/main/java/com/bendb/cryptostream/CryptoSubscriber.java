@@ -0,0 +1,187 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Encrypts a sequence of {@link ByteBuffer} chunks into an output stream.
+ *
+ * <p>The subscriber keeps at most {@code prefetch} chunks requested at a
+ * time, asking for one more as each is written, so a fast publisher cannot
+ * outrun a slow sink.  When the publisher completes, the stream is finished
+ * and closed and {@link #completion()} completes normally.  If the publisher
+ * fails, or a write fails, the partial output is abandoned without a final
+ * block and {@link #completion()} completes exceptionally.
+ */
+@RequiresApi(30)
+public final class CryptoSubscriber implements Flow.Subscriber<ByteBuffer> {
+
+    public static final int DEFAULT_PREFETCH = 4;
+
+    private final OutputStream sink;
+    private final byte[] key;
+    private final CipherSuite suite;
+    private final int prefetch;
+
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    private Flow.Subscription subscription;
+    private CryptoOutputStream out;
+    private byte[] scratch;
+
+    /**
+     * Creates a subscriber that writes a stream encrypted with {@code suite}.
+     * A null suite writes a headerless XChaCha20 stream.
+     */
+    public CryptoSubscriber(@NonNull OutputStream sink, @NonNull byte[] key, @Nullable CipherSuite suite) {
+        this(sink, key, suite, DEFAULT_PREFETCH);
+    }
+
+    public CryptoSubscriber(
+            @NonNull OutputStream sink,
+            @NonNull byte[] key,
+            @Nullable CipherSuite suite,
+            int prefetch) {
+        if (key.length != Native.KEY_SIZE) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+
+        if (suite != null && !suite.isAvailable()) {
+            throw new IllegalArgumentException(suite + " is not available on this device");
+        }
+
+        if (prefetch <= 0) {
+            throw new IllegalArgumentException("prefetch must be positive");
+        }
+
+        this.sink = sink;
+        this.key = key.clone();
+        this.suite = suite;
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * A future that completes when the encrypted stream has been fully
+     * written and closed, or exceptionally if the transfer failed.
+     */
+    @NonNull
+    public CompletableFuture<Void> completion() {
+        return completion;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        Objects.requireNonNull(subscription, "subscription");
+
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+
+        try {
+            out = new CryptoOutputStream(sink, key, suite, false);
+        } catch (IOException | RuntimeException e) {
+            subscription.cancel();
+            fail(e);
+            return;
+        } finally {
+            Arrays.fill(key, 0, key.length, (byte) 0);
+        }
+
+        subscription.request(prefetch);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        if (completion.isDone()) {
+            return;
+        }
+
+        try {
+            if (item.hasArray()) {
+                out.write(item.array(), item.arrayOffset() + item.position(), item.remaining());
+                item.position(item.limit());
+            } else {
+                if (scratch == null) {
+                    scratch = new byte[Native.BLOCK_SIZE];
+                }
+                while (item.hasRemaining()) {
+                    int n = Math.min(item.remaining(), scratch.length);
+                    item.get(scratch, 0, n);
+                    out.write(scratch, 0, n);
+                }
+                Arrays.fill(scratch, 0, scratch.length, (byte) 0);
+            }
+        } catch (IOException | RuntimeException e) {
+            subscription.cancel();
+            fail(e);
+            return;
+        }
+
+        subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (completion.isDone()) {
+            return;
+        }
+        fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        if (completion.isDone()) {
+            return;
+        }
+
+        try {
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            return;
+        }
+        completion.complete(null);
+    }
+
+    private void fail(Throwable cause) {
+        if (scratch != null) {
+            Arrays.fill(scratch, 0, scratch.length, (byte) 0);
+        }
+
+        try {
+            if (out != null) {
+                out.abort();
+            } else {
+                sink.close();
+            }
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+        completion.completeExceptionally(cause);
+    }
+}
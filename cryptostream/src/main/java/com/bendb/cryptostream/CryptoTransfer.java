@@ -0,0 +1,160 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream;
+
+import android.os.ParcelFileDescriptor;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Moves data between file descriptors, encrypting or decrypting it on the
+ * way, without passing any of it through the Java heap.
+ *
+ * <p>Each transfer is a single native call that reads the source with
+ * {@code pread} and writes the destination in large chunks.  The source
+ * must be a regular file, and its file offset is not used or changed.  The
+ * destination is written at its current offset, so it may be a file, a
+ * pipe or a socket; this suits serving encrypted media from a local
+ * server, where a request names a byte range of the plaintext.
+ *
+ * <p>Descriptors are given as {@link ParcelFileDescriptor}s, whose raw
+ * descriptor is public API.  The {@link FileDescriptor} overloads
+ * duplicate theirs into one first; the duplicate shares the file offset,
+ * so they behave identically.
+ *
+ * <p>Calls block until the transfer completes, and should not be made on
+ * the main thread.
+ */
+public final class CryptoTransfer {
+
+    /**
+     * Decrypts up to {@code length} bytes of plaintext, starting at plaintext
+     * position {@code offset}, from the encrypted file {@code source} to
+     * {@code destination}.  Fewer bytes are transferred if the stream ends
+     * first.
+     *
+     * <p>The source may be a headerless stream or an XChaCha20 stream with a
+     * header.  AES-256-GCM streams are authenticated segment by segment and
+     * cannot be read from an arbitrary offset this way; use
+     * {@link CryptoInputStream} for those.
+     *
+     * @return the number of plaintext bytes written to {@code destination}.
+     */
+    public static long decrypt(
+            @NonNull ParcelFileDescriptor source,
+            @NonNull ParcelFileDescriptor destination,
+            @NonNull byte[] key,
+            long offset,
+            long length) throws IOException {
+        checkArguments(key, offset, length);
+
+        int sourceFd = source.getFd();
+        byte[] prefix = new byte[StreamHeader.SIZE];
+        int prefixLength = Native.readAt(sourceFd, 0, prefix);
+
+        int dataStart;
+        CipherSuite suite = StreamHeader.parsePrefix(prefix);
+        if (suite == CipherSuite.AES256GCM) {
+            throw new IOException("AES-256-GCM streams cannot be transferred; use CryptoInputStream");
+        } else if (suite != null) {
+            dataStart = StreamHeader.SIZE;
+        } else {
+            dataStart = Native.NONCE_SIZE;
+        }
+
+        if (prefixLength < dataStart) {
+            throw new EOFException();
+        }
+
+        byte[] nonce = Arrays.copyOfRange(prefix, dataStart - Native.NONCE_SIZE, dataStart);
+        return Native.decryptFd(sourceFd, destination.getFd(), key, nonce, dataStart, offset, length);
+    }
+
+    /**
+     * Like {@link #decrypt(ParcelFileDescriptor, ParcelFileDescriptor, byte[], long, long)},
+     * for plain descriptors.
+     */
+    public static long decrypt(
+            @NonNull FileDescriptor source,
+            @NonNull FileDescriptor destination,
+            @NonNull byte[] key,
+            long offset,
+            long length) throws IOException {
+        try (ParcelFileDescriptor src = ParcelFileDescriptor.dup(source);
+             ParcelFileDescriptor dst = ParcelFileDescriptor.dup(destination)) {
+            return decrypt(src, dst, key, offset, length);
+        }
+    }
+
+    /**
+     * Encrypts up to {@code length} bytes of {@code source}, starting at
+     * {@code offset}, writing a complete headerless stream to
+     * {@code destination}: a fresh nonce followed by the ciphertext.  The
+     * result can be read by {@link CryptoInputStream}.
+     *
+     * @return the number of plaintext bytes encrypted.
+     */
+    public static long encrypt(
+            @NonNull ParcelFileDescriptor source,
+            @NonNull ParcelFileDescriptor destination,
+            @NonNull byte[] key,
+            long offset,
+            long length) throws IOException {
+        checkArguments(key, offset, length);
+
+        byte[] nonce = new byte[Native.NONCE_SIZE];
+        Native.generateNonce(nonce);
+        return Native.encryptFd(source.getFd(), destination.getFd(), key, nonce, offset, length);
+    }
+
+    /**
+     * Like {@link #encrypt(ParcelFileDescriptor, ParcelFileDescriptor, byte[], long, long)},
+     * for plain descriptors.
+     */
+    public static long encrypt(
+            @NonNull FileDescriptor source,
+            @NonNull FileDescriptor destination,
+            @NonNull byte[] key,
+            long offset,
+            long length) throws IOException {
+        try (ParcelFileDescriptor src = ParcelFileDescriptor.dup(source);
+             ParcelFileDescriptor dst = ParcelFileDescriptor.dup(destination)) {
+            return encrypt(src, dst, key, offset, length);
+        }
+    }
+
+    private static void checkArguments(byte[] key, long offset, long length) {
+        if (key.length != Native.KEY_SIZE) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset cannot be negative");
+        }
+
+        if (length < 0) {
+            throw new IllegalArgumentException("length cannot be negative");
+        }
+    }
+
+    private CryptoTransfer() {
+        // no instances
+    }
+}
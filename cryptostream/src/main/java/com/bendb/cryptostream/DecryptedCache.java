@@ -0,0 +1,299 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * An in-memory cache of decrypted files, for payloads like thumbnails that
+ * are opened over and over.
+ *
+ * <p>Entries are keyed by file path and a caller-chosen key id, so that
+ * the same file decrypted under different keys is cached separately.  The
+ * cache holds at most {@code maxBytes} of plaintext, evicting the least
+ * recently used entries first.  A file larger than that is decrypted and
+ * returned, but not cached.
+ *
+ * <p>Concurrent requests for an entry that is not cached share a single
+ * load: one thread decrypts the file while the others wait for its result.
+ *
+ * <p>The cache does not notice when a file changes on disk; callers that
+ * rewrite a file must {@link #invalidate(File) invalidate} it.  This class
+ * is thread-safe.
+ */
+public final class DecryptedCache {
+
+    private static final class Key {
+        final String path;
+        final String keyId;
+
+        Key(String path, String keyId) {
+            this.path = path;
+            this.keyId = keyId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return path.equals(other.path) && keyId.equals(other.keyId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * path.hashCode() + keyId.hashCode();
+        }
+    }
+
+    private final long maxBytes;
+    private final boolean wipeOnEviction;
+
+    // Guarded by this.  Access-ordered, so iteration starts at the least
+    // recently used entry.
+    private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, FutureTask<byte[]>> loads = new HashMap<>();
+    private long weight = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long loadCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * Creates a cache holding at most {@code maxBytes} of plaintext.  When
+     * {@code wipeOnEviction} is true, evicted and invalidated entries are
+     * zeroed rather than just dropped for the garbage collector.
+     */
+    public DecryptedCache(long maxBytes, boolean wipeOnEviction) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+
+        this.maxBytes = maxBytes;
+        this.wipeOnEviction = wipeOnEviction;
+    }
+
+    /**
+     * Returns the decrypted contents of {@code file}, decrypting it with
+     * {@code key} if it is not already cached under {@code keyId}.
+     *
+     * <p>The returned array is a copy that belongs to the caller; cached
+     * data is never handed out, so wiping an evicted entry cannot pull the
+     * rug out from under a reader.
+     */
+    @NonNull
+    public byte[] get(@NonNull File file, @NonNull String keyId, @NonNull byte[] key) throws IOException {
+        if (key.length != Native.KEY_SIZE) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+
+        final Key cacheKey = new Key(file.getAbsolutePath(), keyId);
+        final byte[] keyCopy = key.clone();
+
+        FutureTask<byte[]> load;
+        boolean owner = false;
+        synchronized (this) {
+            byte[] cached = entries.get(cacheKey);
+            if (cached != null) {
+                hitCount++;
+                Arrays.fill(keyCopy, 0, keyCopy.length, (byte) 0);
+                return cached.clone();
+            }
+
+            missCount++;
+            load = loads.get(cacheKey);
+            if (load == null) {
+                load = new FutureTask<>(() -> decrypt(file, keyCopy));
+                loads.put(cacheKey, load);
+                loadCount++;
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            load.run();
+        } else {
+            Arrays.fill(keyCopy, 0, keyCopy.length, (byte) 0);
+        }
+
+        byte[] result = null;
+        try {
+            result = load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + file, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            if (owner) {
+                Arrays.fill(keyCopy, 0, keyCopy.length, (byte) 0);
+
+                synchronized (this) {
+                    // A failed load is dropped so that the next get() tries
+                    // again.  An invalidate() during the load removes it from
+                    // loads; its result may be stale, so it is returned but
+                    // not cached.
+                    //
+                    // The cache gets its own copy: waiters copy the load's
+                    // array outside the lock, and an evicted entry may be
+                    // wiped at any time.
+                    if (loads.get(cacheKey) == load) {
+                        loads.remove(cacheKey);
+                        if (result != null && result.length <= maxBytes) {
+                            put(cacheKey, result.clone());
+                        }
+                    }
+                }
+            }
+        }
+
+        return result.clone();
+    }
+
+    private static byte[] decrypt(File file, byte[] key) throws IOException {
+        long fileLength = file.length();
+        if (fileLength > Integer.MAX_VALUE) {
+            throw new IOException(file + " is too large to cache");
+        }
+
+        // The plaintext is never longer than the file, so one array of that
+        // size holds it without any intermediate copies.
+        byte[] buffer = new byte[(int) fileLength];
+        int length = 0;
+        try (CryptoInputStream in = new CryptoInputStream(new FileInputStream(file), key)) {
+            int n;
+            while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) != -1) {
+                length += n;
+            }
+        }
+
+        if (length == buffer.length) {
+            return buffer;
+        }
+
+        byte[] result = Arrays.copyOf(buffer, length);
+        Arrays.fill(buffer, 0, length, (byte) 0);
+        return result;
+    }
+
+    private void put(Key cacheKey, byte[] value) {
+        byte[] previous = entries.put(cacheKey, value);
+        if (previous != null) {
+            weight -= previous.length;
+            discard(previous);
+        }
+        weight += value.length;
+
+        Iterator<byte[]> it = entries.values().iterator();
+        while (weight > maxBytes && it.hasNext()) {
+            byte[] eldest = it.next();
+            it.remove();
+            weight -= eldest.length;
+            evictionCount++;
+            discard(eldest);
+        }
+    }
+
+    private void discard(byte[] value) {
+        if (wipeOnEviction) {
+            Arrays.fill(value, 0, value.length, (byte) 0);
+        }
+    }
+
+    /**
+     * Removes {@code file} from the cache under every key id.  A load of the
+     * file already in progress completes, but its result is not cached.
+     */
+    public synchronized void invalidate(@NonNull File file) {
+        String path = file.getAbsolutePath();
+
+        Iterator<Map.Entry<Key, byte[]>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, byte[]> entry = it.next();
+            if (entry.getKey().path.equals(path)) {
+                it.remove();
+                weight -= entry.getValue().length;
+                discard(entry.getValue());
+            }
+        }
+
+        Iterator<Key> loading = loads.keySet().iterator();
+        while (loading.hasNext()) {
+            if (loading.next().path.equals(path)) {
+                loading.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes every entry from the cache.
+     */
+    public synchronized void clear() {
+        for (byte[] value : entries.values()) {
+            discard(value);
+        }
+        entries.clear();
+        loads.clear();
+        weight = 0;
+    }
+
+    /**
+     * The number of plaintext bytes currently cached.
+     */
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public synchronized long hitCount() {
+        return hitCount;
+    }
+
+    public synchronized long missCount() {
+        return missCount;
+    }
+
+    /**
+     * The number of times a file was actually read and decrypted.  Misses
+     * that joined a load already in progress are not counted.
+     */
+    public synchronized long loadCount() {
+        return loadCount;
+    }
+
+    public synchronized long evictionCount() {
+        return evictionCount;
+    }
+}
@@ -14,20 +14,88 @@
 
 package com.bendb.cryptostream;
 
+import java.nio.ByteBuffer;
+
 final class Native {
     static {
         System.loadLibrary("cryptostream");
     }
 
+    // These never change at runtime, so they're fetched once here rather
+    // than crossing JNI every time a stream is opened.
+    static final int BLOCK_SIZE = blockSize();
+    static final int KEY_SIZE = keySize();
+    static final int NONCE_SIZE = nonceSize();
+    static final int DIGEST_SIZE = digestSize();
+    static final int HASH_STATE_SIZE = hashStateSize();
+    static final int AEAD_TAG_SIZE = aeadTagSize();
+    static final boolean AES256GCM_AVAILABLE = aes256gcmAvailable();
+
     static native int blockSize();
     static native int keySize();
     static native int nonceSize();
 
     static native byte[] generateKey();
-    static native byte[] generateNonce();
+    static native void generateNonce(byte[] nonce);
     static native void encrypt(byte[] key, byte[] nonce, long counter, byte[] message, long length);
     static native void decrypt(byte[] key, byte[] nonce, long counter, byte[] message, long length);
 
+    static native int digestSize();
+    static native int hashStateSize();
+    static native void hashInit(byte[] hashState);
+    static native void hashFinal(byte[] hashState, byte[] digest);
+
+    // Like encrypt/decrypt, but also feed the plaintext into hashState in the same call.
+    static native void encryptAndHash(byte[] key, byte[] nonce, long counter, byte[] message, long length, byte[] hashState);
+    static native void decryptAndHash(byte[] key, byte[] nonce, long counter, byte[] message, long length, byte[] hashState);
+
+    static native boolean aes256gcmAvailable();
+    static native int aeadTagSize();
+
+    // Derives a per-stream AES-256-GCM key from the caller's key and a random salt.
+    static native void deriveKey(byte[] key, byte[] salt, byte[] subkey);
+
+    // Encrypts length bytes of buffer in place and appends the tag; buffer
+    // needs AEAD_TAG_SIZE bytes of room.  hashState may be null.
+    static native void sealSegment(byte[] key, long index, boolean last, byte[] buffer, int length, byte[] hashState);
+
+    // Verifies and decrypts length bytes (including the tag) in place.
+    // Returns false, and zeroes the buffer, if verification fails.
+    static native boolean openSegment(byte[] key, long index, boolean last, byte[] buffer, int length, byte[] hashState);
+
+    // Guarded, locked memory from sodium_malloc, viewed as a direct buffer.
+    // It is zeroed on allocation and again by secureFree, after which the
+    // buffer must never be touched.
+    static native ByteBuffer secureAllocate(int size);
+    static native void secureFree(ByteBuffer buffer);
+    static native void secureZero(ByteBuffer buffer, int offset, int length);
+
+    // Counterparts of encrypt/decrypt and sealSegment/openSegment that take
+    // the key and plaintext in secureAllocate'd buffers, and the ciphertext
+    // in an array.  hashState may be null.
+    static native void encryptDirect(ByteBuffer key, byte[] nonce, long counter, ByteBuffer plaintext, byte[] ciphertext, int length, byte[] hashState);
+    static native void decryptDirect(ByteBuffer key, byte[] nonce, long counter, byte[] ciphertext, ByteBuffer plaintext, int length, byte[] hashState);
+    static native void sealSegmentDirect(ByteBuffer key, long index, boolean last, ByteBuffer plaintext, int length, byte[] segment, byte[] hashState);
+    static native boolean openSegmentDirect(ByteBuffer key, long index, boolean last, byte[] segment, int length, ByteBuffer plaintext, byte[] hashState);
+
+    // Whole nonce-prefixed messages in one call.  encryptBytes generates
+    // the nonce and writes NONCE_SIZE + inputLength bytes; decryptBytes
+    // reads it and writes inputLength - NONCE_SIZE bytes.
+    static native void encryptBytes(byte[] key, byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset);
+    static native void decryptBytes(byte[] key, byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset);
+
+    // Keyed BLAKE2b of length bytes of input; digest is DIGEST_SIZE bytes.
+    static native void keyedHash(byte[] key, byte[] input, int offset, int length, byte[] digest);
+
+    // Descriptor-to-descriptor transfers, done entirely in native memory;
+    // see CryptoTransfer.  readAt reads at most 64 bytes, for headers.
+    static native int readAt(int fd, long position, byte[] buffer);
+    static native long encryptFd(int source, int destination, byte[] key, byte[] nonce, long offset, long length);
+    static native long decryptFd(int source, int destination, byte[] key, byte[] nonce, long dataStart, long offset, long length);
+
+    // fsync(2) on a directory, so that renames into it survive a crash.
+    static native void syncDirectory(String path);
+
     private Native() {
         // no instances
     }
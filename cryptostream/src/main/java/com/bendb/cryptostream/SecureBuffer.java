@@ -0,0 +1,123 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed-size block of memory from libsodium's {@code sodium_malloc}.
+ *
+ * <p>The memory lives outside the Java heap, so the garbage collector never
+ * moves or copies it.  It is locked so it does not get swapped out, and it
+ * sits between guard pages.  It is zeroed when it is allocated and again
+ * when it is freed.
+ *
+ * <p>The memory is released by {@link #close()}, not by the garbage
+ * collector, so every instance must be closed.  Each allocation maps
+ * several pages, so these belong to long-lived objects like streams, not
+ * to single calls.
+ */
+final class SecureBuffer implements Closeable {
+
+    private final int size;
+    private ByteBuffer buffer;
+
+    SecureBuffer(int size) {
+        this.size = size;
+        this.buffer = Native.secureAllocate(size);
+    }
+
+    /**
+     * Allocates a buffer holding a copy of {@code bytes}.  The caller still
+     * owns, and should wipe, the original.
+     */
+    @NonNull
+    static SecureBuffer copyOf(@NonNull byte[] bytes) {
+        SecureBuffer result = new SecureBuffer(bytes.length);
+        result.write(0, bytes, 0, bytes.length);
+        return result;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * The direct buffer viewing this memory, for passing to {@link Native}.
+     * Its position and limit are not meaningful.
+     */
+    @NonNull
+    ByteBuffer buffer() {
+        checkNotClosed();
+        return buffer;
+    }
+
+    void read(int position, @NonNull byte[] dst, int offset, int length) {
+        checkNotClosed();
+        buffer.clear();
+        buffer.position(position);
+        buffer.get(dst, offset, length);
+    }
+
+    void write(int position, @NonNull byte[] src, int offset, int length) {
+        checkNotClosed();
+        buffer.clear();
+        buffer.position(position);
+        buffer.put(src, offset, length);
+    }
+
+    /**
+     * Moves {@code length} bytes at {@code offset} to the start of the
+     * buffer, and zeroes everything else up to {@code offset + length}.
+     */
+    void compact(int offset, int length) {
+        checkNotClosed();
+        buffer.clear();
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        buffer.compact();
+        wipe(length, offset);
+    }
+
+    void wipe(int offset, int length) {
+        checkNotClosed();
+        if (length > 0) {
+            Native.secureZero(buffer, offset, length);
+        }
+    }
+
+    /**
+     * Zeroes and frees the memory.  Calling this more than once is harmless.
+     */
+    @Override
+    public void close() {
+        if (buffer == null) {
+            return;
+        }
+
+        ByteBuffer b = buffer;
+        buffer = null;
+        Native.secureFree(b);
+    }
+
+    private void checkNotClosed() {
+        if (buffer == null) {
+            throw new IllegalStateException("Buffer freed");
+        }
+    }
+}
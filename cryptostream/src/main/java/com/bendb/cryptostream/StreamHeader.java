@@ -0,0 +1,76 @@
+// Copyright 2026 Benjamin Bader
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy
+// of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.bendb.cryptostream;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The optional header at the start of a stream:
+ * <pre>
+ *   byte[4] MAGIC
+ *   byte    VERSION
+ *   byte    cipher suite id
+ *   byte[24] nonce (XChaCha20) or key-derivation salt (AES-256-GCM)
+ * </pre>
+ *
+ * Headerless streams begin directly with a 24-byte XChaCha20 nonce.  A
+ * headerless stream whose nonce happens to start with a valid prefix would
+ * be misread; with a 4-byte magic and only known versions and ids
+ * accepted, the odds of that are below one in 2^46.
+ */
+final class StreamHeader {
+    static final byte[] MAGIC = {(byte) 0xC5, 'C', 'S', 'H'};
+    static final int VERSION = 1;
+    static final int PREFIX_SIZE = MAGIC.length + 2;
+    static final int SIZE = PREFIX_SIZE + Native.NONCE_SIZE;
+
+    static void writePrefix(OutputStream out, CipherSuite suite) throws IOException {
+        byte[] prefix = new byte[PREFIX_SIZE];
+        System.arraycopy(MAGIC, 0, prefix, 0, MAGIC.length);
+        prefix[MAGIC.length] = (byte) VERSION;
+        prefix[MAGIC.length + 1] = (byte) suite.id;
+        out.write(prefix);
+    }
+
+    /**
+     * Returns the cipher suite named by the first {@link #PREFIX_SIZE} bytes
+     * of {@code bytes}, or null if they are not a header prefix.
+     */
+    @Nullable
+    static CipherSuite parsePrefix(byte[] bytes) {
+        if (bytes.length < PREFIX_SIZE) {
+            return null;
+        }
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return null;
+            }
+        }
+
+        if ((bytes[MAGIC.length] & 0xFF) != VERSION) {
+            return null;
+        }
+
+        return CipherSuite.forId(bytes[MAGIC.length + 1] & 0xFF);
+    }
+
+    private StreamHeader() {
+        // no instances
+    }
+}